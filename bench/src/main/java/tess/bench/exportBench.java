@@ -0,0 +1,79 @@
+/**
+ * exportBench.java
+ *
+ * Cost of handing a built shape's data to the renderer
+ * (simpleShape.getVertices and getElements) and of clearing a shape for
+ * reuse.
+ */
+
+package tess.bench;
+
+import java.nio.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+@State (Scope.Thread)
+public class exportBench
+{
+    @Param ({ "cube:32", "cylinder:256:64", "sphere:7" })
+    public String job;
+
+    @Param ({ "false", "true" })
+    public boolean welding;
+
+    private Object shape;
+    private int spec[];
+
+    @Setup (Level.Trial)
+    public void setup() throws Throwable
+    {
+        spec = shapeHandles.parseJob (job);
+        shape = (Object) shapeHandles.NEW_SHAPE.invokeExact();
+        shapeHandles.SET_WELDING.invokeExact (shape, welding);
+        shapeHandles.MAKE_SHAPE.invokeExact (shape, spec[0], spec[1], spec[2]);
+    }
+
+    @Benchmark
+    public Buffer getVertices() throws Throwable
+    {
+        return (Buffer) shapeHandles.GET_VERTICES.invokeExact (shape);
+    }
+
+    @Benchmark
+    public Buffer getElements() throws Throwable
+    {
+        return (Buffer) shapeHandles.GET_ELEMENTS.invokeExact (shape);
+    }
+
+    /**
+     * clearing a full shape; each op first rebuilds it outside the timing
+     */
+    @State (Scope.Thread)
+    public static class fullShape
+    {
+        Object shape;
+
+        @Setup (Level.Invocation)
+        public void fill (exportBench b) throws Throwable
+        {
+            if (shape == null) {
+                shape = (Object) shapeHandles.NEW_SHAPE.invokeExact();
+                shapeHandles.SET_WELDING.invokeExact (shape, b.welding);
+            }
+            shapeHandles.MAKE_SHAPE.invokeExact (shape, b.spec[0], b.spec[1], b.spec[2]);
+        }
+    }
+
+    @Benchmark
+    public Object clear (fullShape f) throws Throwable
+    {
+        shapeHandles.CLEAR.invokeExact (f.shape);
+        return f.shape;
+    }
+}
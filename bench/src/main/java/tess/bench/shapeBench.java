@@ -0,0 +1,88 @@
+/**
+ * shapeBench.java
+ *
+ * Tessellation throughput of cgShape.makeCube, makeCylinder, makeCone and
+ * makeSphere (through makeShape) over a sweep of division values, with
+ * and without welding, serially and split across the fork/join pool.
+ * Each op builds one fresh shape; the "triangles"
+ * counter turns the score into triangles/s.
+ */
+
+package tess.bench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+@State (Scope.Thread)
+public class shapeBench
+{
+    @Param ({ "cube:8", "cube:32", "cube:128",
+              "cylinder:16:4", "cylinder:64:16", "cylinder:256:64",
+              "cone:16:4", "cone:64:16", "cone:256:64",
+              "sphere:3", "sphere:5", "sphere:7" })
+    public String job;
+
+    @Param ({ "false", "true" })
+    public boolean welding;
+
+    @Param ({ "false", "true" })
+    public boolean parallel;
+
+    private int shape;
+    private int division1;
+    private int division2;
+
+    /**
+     * triangles made, reported by JMH as a rate
+     */
+    @State (Scope.Thread)
+    @AuxCounters (AuxCounters.Type.OPERATIONS)
+    public static class counters
+    {
+        public long triangles;
+
+        @Setup (Level.Iteration)
+        public void reset()
+        {
+            triangles = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        int j[] = shapeHandles.parseJob (job);
+        shape = j[0];
+        division1 = j[1];
+        division2 = j[2];
+
+        Object s = build();
+        System.out.println ("# " + job + " welding=" + welding +
+                            " parallel=" + parallel + ": " +
+                            ((int) shapeHandles.GET_NELEMENTS.invokeExact (s)) / 3 +
+                            " triangles per op");
+    }
+
+    private Object build() throws Throwable
+    {
+        Object s = (Object) shapeHandles.NEW_SHAPE.invokeExact();
+        shapeHandles.SET_WELDING.invokeExact (s, welding);
+        shapeHandles.SET_PARALLEL.invokeExact (s, parallel);
+        shapeHandles.MAKE_SHAPE.invokeExact (s, shape, division1, division2);
+        return s;
+    }
+
+    @Benchmark
+    public Object tessellate (counters c) throws Throwable
+    {
+        Object s = build();
+        c.triangles += ((int) shapeHandles.GET_NELEMENTS.invokeExact (s)) / 3;
+        return s;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * shapeHandles.java
+ *
+ * The tessellation classes live in the default package, which benchmark
+ * classes (which JMH requires to be in a named package) cannot import.
+ * This looks them up once and exposes method handles; handles held in
+ * static finals are constant folded by the JIT, so calling through them
+ * costs the same as a direct call.
+ */
+
+package tess.bench;
+
+import java.lang.invoke.*;
+import java.util.*;
+
+
+final class shapeHandles
+{
+    static final MethodHandle NEW_SHAPE;
+    static final MethodHandle SET_WELDING;
+    static final MethodHandle SET_PARALLEL;
+    static final MethodHandle MAKE_SHAPE;
+    static final MethodHandle CLEAR;
+    static final MethodHandle GET_VERTICES;
+    static final MethodHandle GET_ELEMENTS;
+    static final MethodHandle GET_NELEMENTS;
+    static final List<String> SHAPE_NAMES;
+
+    static {
+        try {
+            Class<?> shape = Class.forName ("cgShape");
+            MethodHandles.Lookup l = MethodHandles.publicLookup();
+            MethodType objVoid = MethodType.methodType (void.class, Object.class);
+
+            NEW_SHAPE = l.findConstructor (shape, MethodType.methodType (void.class))
+                         .asType (MethodType.methodType (Object.class));
+            SET_WELDING = l.findVirtual (shape, "setWelding", MethodType.methodType (void.class, boolean.class))
+                           .asType (objVoid.appendParameterTypes (boolean.class));
+            SET_PARALLEL = l.findVirtual (shape, "setParallel", MethodType.methodType (void.class, boolean.class))
+                            .asType (objVoid.appendParameterTypes (boolean.class));
+            MAKE_SHAPE = l.findVirtual (shape, "makeShape",
+                                        MethodType.methodType (void.class, int.class, int.class, int.class))
+                          .asType (objVoid.appendParameterTypes (int.class, int.class, int.class));
+            CLEAR = l.findVirtual (shape, "clear", MethodType.methodType (void.class))
+                     .asType (objVoid);
+            GET_VERTICES = l.findVirtual (shape, "getVertices", MethodType.methodType (java.nio.Buffer.class))
+                            .asType (MethodType.methodType (java.nio.Buffer.class, Object.class));
+            GET_ELEMENTS = l.findVirtual (shape, "getElements", MethodType.methodType (java.nio.Buffer.class))
+                            .asType (MethodType.methodType (java.nio.Buffer.class, Object.class));
+            GET_NELEMENTS = l.findVirtual (shape, "getNElements", MethodType.methodType (int.class))
+                             .asType (MethodType.methodType (int.class, Object.class));
+            SHAPE_NAMES = Arrays.asList ((String[]) shape.getField ("SHAPE_NAMES").get (null));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError (e);
+        }
+    }
+
+    /**
+     * a parsed shape:division1[:division2] job, as tessBatch takes them
+     */
+    static int[] parseJob (String spec)
+    {
+        String parts[] = spec.split (":");
+        int shape = SHAPE_NAMES.indexOf (parts[0]);
+        if (shape < 0)
+            throw new IllegalArgumentException ("unknown shape " + parts[0]);
+        return new int[] { shape, Integer.parseInt (parts[1]),
+                           parts.length > 2 ? Integer.parseInt (parts[2]) : 3 };
+    }
+
+    private shapeHandles()
+    {
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * bufferCalls.java
+ *
+ * The buffer object calls bufferManager and glBufferSink make, and no
+ * others.  bufferManager.calls() forwards them to a real GL2;
+ * test/glRecorder.java implements them by hand to check the call
+ * sequence without a GPU (GL2 itself has far too many methods to stand
+ * in for).
+ *
+ * The signatures are GL2's own.
+ */
+
+import java.nio.*;
+
+
+public interface bufferCalls
+{
+    void glGenBuffers (int n, int buffers[], int offset);
+
+    void glDeleteBuffers (int n, int buffers[], int offset);
+
+    void glBindBuffer (int target, int buffer);
+
+    void glBufferData (int target, long size, Buffer data, int usage);
+
+    void glBufferSubData (int target, long offset, long size, Buffer data);
+
+    ByteBuffer glMapBufferRange (int target, long offset, long length, int access);
+
+    boolean glUnmapBuffer (int target);
+}
@@ -0,0 +1,328 @@
+/**
+ * bufferManager.java
+ *
+ * Keeps one persistent vertex buffer and element buffer for a shape and
+ * refills them when the shape changes, instead of deleting and generating
+ * new buffer objects on every update.
+ *
+ * Buffer storage grows geometrically.  When new data fits in the current
+ * storage it is orphaned (re-specified with no data, so the driver can
+ * hand us fresh memory without waiting for draws still using the old
+ * contents) and filled with glBufferSubData.
+ *
+ * The work is done through bufferCalls, so it can be checked without a
+ * GPU (see test/glRecorder.java); each method also takes a GL2 for
+ * ordinary use, wrapped once and reused while the GL2 stays the same.
+ */
+
+import java.nio.*;
+import javax.media.opengl.*;
+
+
+public class bufferManager
+{
+    /**
+     * buffer names; 0 until first used
+     */
+    private int vbuffer;
+    private int ebuffer;
+
+    /**
+     * bytes of storage currently allocated for each buffer
+     */
+    private long vertCapacity;
+    private long elemCapacity;
+
+    /**
+     * whether to orphan storage before refilling it
+     */
+    private boolean orphan;
+
+    /**
+     * statistics
+     */
+    private long lastUploadBytes;
+    private long totalUploadBytes;
+    private long uploads;
+    private long reallocations;
+
+    /**
+     * forwards bufferCalls to a GL2
+     */
+    private static class GLCalls implements bufferCalls
+    {
+        private final GL2 gl2;
+
+        GLCalls (GL2 gl2)
+        {
+            this.gl2 = gl2;
+        }
+
+        public void glGenBuffers (int n, int buffers[], int offset)
+        {
+            gl2.glGenBuffers (n, buffers, offset);
+        }
+
+        public void glDeleteBuffers (int n, int buffers[], int offset)
+        {
+            gl2.glDeleteBuffers (n, buffers, offset);
+        }
+
+        public void glBindBuffer (int target, int buffer)
+        {
+            gl2.glBindBuffer (target, buffer);
+        }
+
+        public void glBufferData (int target, long size, Buffer data, int usage)
+        {
+            gl2.glBufferData (target, size, data, usage);
+        }
+
+        public void glBufferSubData (int target, long offset, long size, Buffer data)
+        {
+            gl2.glBufferSubData (target, offset, size, data);
+        }
+
+        public ByteBuffer glMapBufferRange (int target, long offset, long length, int access)
+        {
+            return gl2.glMapBufferRange (target, offset, length, access);
+        }
+
+        public boolean glUnmapBuffer (int target)
+        {
+            return gl2.glUnmapBuffer (target);
+        }
+    }
+
+    /**
+     * the wrapper last made by calls(), kept so drawing does not allocate
+     * one every frame
+     */
+    private GLCalls glCalls;
+
+    /**
+     * the buffer calls of a GL2
+     */
+    public bufferCalls calls (GL2 gl2)
+    {
+        if (glCalls == null || glCalls.gl2 != gl2)
+            glCalls = new GLCalls (gl2);
+        return glCalls;
+    }
+
+    /**
+     * constructor
+     */
+    public bufferManager()
+    {
+        vbuffer = 0;
+        ebuffer = 0;
+        vertCapacity = 0;
+        elemCapacity = 0;
+        orphan = true;
+    }
+
+    public void setOrphaning (boolean o)
+    {
+        orphan = o;
+    }
+
+    /**
+     * upload new vertex and element data, growing the buffers if needed.
+     * Leaves both buffers bound.
+     */
+    public void upload (GL2 gl2, Buffer vertices, long vertBytes,
+                        Buffer elements, long elemBytes)
+    {
+        upload (calls (gl2), vertices, vertBytes, elements, elemBytes);
+    }
+
+    public void upload (bufferCalls gl2, Buffer vertices, long vertBytes,
+                        Buffer elements, long elemBytes)
+    {
+        generate (gl2);
+
+        gl2.glBindBuffer (GL.GL_ARRAY_BUFFER, vbuffer);
+        vertCapacity = fill (gl2, GL.GL_ARRAY_BUFFER, vertCapacity, vertices, vertBytes);
+
+        gl2.glBindBuffer (GL.GL_ELEMENT_ARRAY_BUFFER, ebuffer);
+        elemCapacity = fill (gl2, GL.GL_ELEMENT_ARRAY_BUFFER, elemCapacity, elements, elemBytes);
+
+        lastUploadBytes = vertBytes + elemBytes;
+        totalUploadBytes += lastUploadBytes;
+        uploads++;
+    }
+
+    /**
+     * make room for vertBytes and elemBytes and map both buffers for
+     * writing, for filling in place (as glBufferSink does) instead of from
+     * client memory.  The old contents are invalidated, which orphans them
+     * as upload() does.  Leaves both buffers bound; call unmap() before
+     * drawing from them.
+     *
+     * @return the mapped vertex and element storage, in that order
+     */
+    public ByteBuffer[] map (GL2 gl2, long vertBytes, long elemBytes)
+    {
+        return map (calls (gl2), vertBytes, elemBytes);
+    }
+
+    public ByteBuffer[] map (bufferCalls gl2, long vertBytes, long elemBytes)
+    {
+        generate (gl2);
+        int access = GL.GL_MAP_WRITE_BIT | GL.GL_MAP_INVALIDATE_BUFFER_BIT;
+        ByteBuffer maps[] = new ByteBuffer[2];
+
+        gl2.glBindBuffer (GL.GL_ARRAY_BUFFER, vbuffer);
+        vertCapacity = reserve (gl2, GL.GL_ARRAY_BUFFER, vertCapacity, vertBytes);
+        maps[0] = gl2.glMapBufferRange (GL.GL_ARRAY_BUFFER, 0, Math.max (1, vertBytes), access);
+
+        gl2.glBindBuffer (GL.GL_ELEMENT_ARRAY_BUFFER, ebuffer);
+        elemCapacity = reserve (gl2, GL.GL_ELEMENT_ARRAY_BUFFER, elemCapacity, elemBytes);
+        maps[1] = gl2.glMapBufferRange (GL.GL_ELEMENT_ARRAY_BUFFER, 0, Math.max (1, elemBytes), access);
+
+        lastUploadBytes = vertBytes + elemBytes;
+        totalUploadBytes += lastUploadBytes;
+        uploads++;
+        return maps;
+    }
+
+    /**
+     * finish writing buffers mapped by map()
+     *
+     * @return false if the driver lost the contents while they were
+     *         mapped, and they have to be written again
+     */
+    public boolean unmap (GL2 gl2)
+    {
+        return unmap (calls (gl2));
+    }
+
+    public boolean unmap (bufferCalls gl2)
+    {
+        gl2.glBindBuffer (GL.GL_ARRAY_BUFFER, vbuffer);
+        boolean vok = gl2.glUnmapBuffer (GL.GL_ARRAY_BUFFER);
+        gl2.glBindBuffer (GL.GL_ELEMENT_ARRAY_BUFFER, ebuffer);
+        boolean eok = gl2.glUnmapBuffer (GL.GL_ELEMENT_ARRAY_BUFFER);
+        return vok && eok;
+    }
+
+    private void generate (bufferCalls gl2)
+    {
+        if (vbuffer == 0) {
+            int bf[] = new int[2];
+            gl2.glGenBuffers (2, bf, 0);
+            vbuffer = bf[0];
+            ebuffer = bf[1];
+        }
+    }
+
+    /**
+     * grow the bound buffer's storage to hold at least bytes
+     *
+     * @return the buffer's capacity afterwards
+     */
+    private long reserve (bufferCalls gl2, int target, long capacity, long bytes)
+    {
+        bytes = Math.max (1, bytes);
+        if (bytes > capacity) {
+            capacity = Math.max (bytes, capacity * 2);
+            gl2.glBufferData (target, capacity, null, GL.GL_DYNAMIC_DRAW);
+            reallocations++;
+        }
+        return capacity;
+    }
+
+    /**
+     * fill the bound buffer, reallocating when the data does not fit
+     *
+     * @return the buffer's capacity afterwards
+     */
+    private long fill (bufferCalls gl2, int target, long capacity, Buffer data, long bytes)
+    {
+        if (bytes > capacity) {
+            capacity = Math.max (bytes, capacity * 2);
+            gl2.glBufferData (target, capacity, null, GL.GL_DYNAMIC_DRAW);
+            reallocations++;
+        } else if (orphan) {
+            gl2.glBufferData (target, capacity, null, GL.GL_DYNAMIC_DRAW);
+        }
+
+        if (bytes > 0)
+            gl2.glBufferSubData (target, 0, bytes, data);
+
+        return capacity;
+    }
+
+    /**
+     * bind the vertex and element buffers for drawing
+     */
+    public void bind (GL2 gl2)
+    {
+        bind (calls (gl2));
+    }
+
+    public void bind (bufferCalls gl2)
+    {
+        gl2.glBindBuffer (GL.GL_ARRAY_BUFFER, vbuffer);
+        gl2.glBindBuffer (GL.GL_ELEMENT_ARRAY_BUFFER, ebuffer);
+    }
+
+    /**
+     * release the buffers
+     */
+    public void dispose (GL2 gl2)
+    {
+        dispose (calls (gl2));
+    }
+
+    public void dispose (bufferCalls gl2)
+    {
+        if (vbuffer != 0) {
+            int bf[] = { vbuffer, ebuffer };
+            gl2.glDeleteBuffers (2, bf, 0);
+        }
+        vbuffer = 0;
+        ebuffer = 0;
+        vertCapacity = 0;
+        elemCapacity = 0;
+    }
+
+    public boolean isInitialized()
+    {
+        return vbuffer != 0;
+    }
+
+    public long getVertexCapacity()
+    {
+        return vertCapacity;
+    }
+
+    public long getElementCapacity()
+    {
+        return elemCapacity;
+    }
+
+    /**
+     * bytes sent by the most recent upload
+     */
+    public long getLastUploadBytes()
+    {
+        return lastUploadBytes;
+    }
+
+    public long getTotalUploadBytes()
+    {
+        return totalUploadBytes;
+    }
+
+    public long getUploads()
+    {
+        return uploads;
+    }
+
+    public long getReallocations()
+    {
+        return reallocations;
+    }
+}
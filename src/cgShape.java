@@ -15,6 +15,8 @@ import java.awt.event.*;
 import javax.media.opengl.*;
 import javax.media.opengl.awt.GLCanvas;
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * A class that can draw a cube, cylinder, sphere, or cone
@@ -30,6 +32,193 @@ public class cgShape extends simpleShape
     {
     }
 
+    /**
+     * Whether the make* routines split their work across the fork/join pool
+     */
+    private boolean parallel = false;
+
+    /**
+     * Where the make* routines send their vertices and triangles; this
+     * shape itself unless makeShape was given another sink
+     */
+    private triangleSink out = this;
+
+    /**
+     * Turn parallel tessellation on or off.  In parallel mode each face or
+     * range of slices is tessellated into its own shape on the common
+     * fork/join pool and the pieces are then appended in a fixed order, so
+     * the result is the same from run to run.
+     */
+    public void setParallel(boolean par)
+    {
+        parallel = par;
+    }
+
+    public boolean isParallel()
+    {
+        return parallel;
+    }
+
+    /**
+     * One independent piece of a shape
+     */
+    private interface PartBuilder {
+        void build(cgShape s, int part);
+    }
+
+    /**
+     * Tessellates one part into a shape of its own
+     */
+    private static class PartTask extends RecursiveTask<cgShape> {
+        private static final long serialVersionUID = 1L;
+
+        private final PartBuilder builder;
+        private final int part;
+        private final boolean weld;
+        private final boolean strips;
+
+        PartTask(PartBuilder builder, int part, boolean weld, boolean strips){
+            this.builder = builder;
+            this.part = part;
+            this.weld = weld;
+            this.strips = strips;
+        }
+
+        protected cgShape compute(){
+            cgShape s = new cgShape();
+            s.setWelding(weld);
+            s.setStrips(strips);
+            builder.build(s, part);
+            return s;
+        }
+    }
+
+    /**
+     * Build parts 0..nParts-1, either here in order or on the fork/join
+     * pool followed by appending each part's shape in order
+     */
+    private void buildParts(int nParts, PartBuilder builder)
+    {
+        //Other sinks take their input in order, from one thread
+        if(!parallel || nParts < 2 || out != this){
+            for(int p=0; p < nParts; p++)
+                builder.build(this, p);
+            return;
+        }
+
+        PartTask tasks[] = new PartTask[nParts];
+        for(int p=0; p < nParts; p++){
+            tasks[p] = new PartTask(builder, p, isWelding(), isStrips());
+            tasks[p].fork();
+        }
+        for(int p=0; p < nParts; p++){
+            append(tasks[p].join());
+        }
+    }
+
+    /**
+     * How many pieces to split n independent slices into
+     */
+    private int sliceParts(int n)
+    {
+        if(!parallel)
+            return 1;
+        return Math.min(n, ForkJoinPool.getCommonPoolParallelism() * 4);
+    }
+
+    /**
+     * The corners of the unit cube, and its faces as
+     * (lower left, lower right, upper right, upper left) corner indices
+     */
+    private static final float CUBE_CORNERS[] = {
+        -.5f,-.5f,-.5f,   .5f,-.5f,-.5f,   .5f,.5f,-.5f,   -.5f,.5f,-.5f,
+        -.5f,-.5f,.5f,    -.5f,.5f,.5f,    .5f,-.5f,.5f,   .5f,.5f,.5f
+    };
+    private static final int CUBE_FACES[] = {
+        0,1,2,3,   4,0,3,5,   6,4,5,7,
+        3,2,7,5,   4,6,1,0,   1,6,7,2
+    };
+
+    /**
+     * Make one of the shapes tessMain knows about, using the same radius
+     * and meaning of the divisions as tessMain does
+     *
+     * @param shapeType - tessMain.CUBE, CYLINDER, CONE or SPHERE
+     * @param division1 - subdivisions for the cube, radial divisions for
+     *        the cylinder and cone, recursions for the sphere
+     * @param division2 - height divisions for the cylinder and cone
+     */
+    public void makeShape (int shapeType, int division1, int division2)
+    {
+        switch (shapeType)
+        {
+            case tessMain.CUBE: makeCube (division1);
+                break;
+
+            case tessMain.CYLINDER: makeCylinder (0.5f, division1, division2);
+                break;
+
+            case tessMain.CONE: makeCone (0.5f, division1, division2);
+                break;
+
+            case tessMain.SPHERE: makeSphere (0.5f, division1, division2);
+                break;
+
+            default:
+                throw new IllegalArgumentException ("unknown shape " + shapeType);
+        }
+    }
+
+    /**
+     * Make one of tessMain's shapes, sending the vertices and triangles to
+     * sink as they are generated instead of keeping them in this shape.
+     * This shape's welding, parallel and strip settings do not apply;
+     * vertices are only shared within a face, column or sphere patch.
+     */
+    public void makeShape (triangleSink sink, int shapeType, int division1, int division2)
+    {
+        triangleSink saved = out;
+        out = sink;
+        try {
+            makeShape (shapeType, division1, division2);
+        } finally {
+            out = saved;
+        }
+    }
+
+    /**
+     * Shape names, indexed by tessMain's shape constants
+     */
+    public static final String SHAPE_NAMES[] = { "cube", "cylinder", "cone", "sphere" };
+
+    /**
+     * The first division as makeShape uses it, after the generators clamp
+     * it; divisions that make the same mesh map to the same value
+     */
+    public static int usedDivision1 (int shapeType, int division1)
+    {
+        switch (shapeType) {
+            case tessMain.CUBE:
+                return Math.max (1, division1);
+            case tessMain.SPHERE:
+                //makeSphere recurses division1 - 1 levels, at most MAX_ICO_LEVEL
+                return Math.min (Math.max (3, division1), MAX_ICO_LEVEL + 1);
+            default:
+                return Math.max (3, division1);
+        }
+    }
+
+    /**
+     * The second division as makeShape uses it; the cube and sphere ignore
+     * it, so any value maps to 0 for them
+     */
+    public static int usedDivision2 (int shapeType, int division2)
+    {
+        if (shapeType == tessMain.CUBE || shapeType == tessMain.SPHERE)
+            return 0;
+        return Math.max (1, division2);
+    }
+
     /**
      * makeCube - Create a unit cube, centered at the origin, with a given number
      * of subdivisions in each direction on each face.
@@ -45,36 +234,29 @@ public class cgShape extends simpleShape
         if( subdivisions < 1 )
             subdivisions = 1;
 
-        //Make all the points at the corners of the cube
-        MyPoint frontLowerLeft = new MyPoint(-.5f,-.5f,-.5f),
-                frontLowerRight = new MyPoint(.5f,-.5f,-.5f),
-                frontUpperRight = new MyPoint(.5f,.5f,-.5f),
-                frontUpperLeft = new MyPoint(-.5f,.5f,-.5f),
-                backLowerLeft = new MyPoint(-.5f,-.5f,.5f),
-                backUpperLeft = new MyPoint(-.5f,.5f,.5f),
-                backLowerRight = new MyPoint(.5f,-.5f,.5f),
-                backUpperRight = new MyPoint(.5f,.5f,.5f)
-                ;
+        final int subs = subdivisions;
 
         //Draw each face
-        makeQuad(frontLowerLeft,frontLowerRight,frontUpperRight,
-                frontUpperLeft, subdivisions);
-
-        makeQuad(backLowerLeft,frontLowerLeft,frontUpperLeft,
-                backUpperLeft, subdivisions);
-
-        makeQuad(backLowerRight, backLowerLeft, backUpperLeft,
-                backUpperRight, subdivisions);
-
-        makeQuad(frontUpperLeft, frontUpperRight, backUpperRight,
-                backUpperLeft, subdivisions);
-
-        makeQuad(backLowerLeft, backLowerRight, frontLowerRight,
-                frontLowerLeft, subdivisions);
+        buildParts(CUBE_FACES.length / 4, new PartBuilder() {
+            public void build(cgShape s, int face){
+                s.cubeFace(face, subs);
+            }
+        });
+    }
 
-        makeQuad(frontLowerRight, backLowerRight, backUpperRight,
-                frontUpperRight, subdivisions);
+    /**
+     * Draws one face of the cube
+     * @param face - Which face, indexing CUBE_FACES
+     * @param subs - The number of subdivisions for the face
+     */
+    private void cubeFace(int face, int subs)
+    {
+        int ll = CUBE_FACES[face*4]*3, lr = CUBE_FACES[face*4+1]*3,
+            ur = CUBE_FACES[face*4+2]*3, ul = CUBE_FACES[face*4+3]*3;
+        float c[] = CUBE_CORNERS;
 
+        quad(c[ll], c[ll+1], c[ll+2], c[lr], c[lr+1], c[lr+2],
+             c[ur], c[ur+1], c[ur+2], c[ul], c[ul+1], c[ul+2], subs);
     }
 
     /**
@@ -87,19 +269,30 @@ public class cgShape extends simpleShape
      * Implemented by: Stephen Yingling
      */
     public void makeQuad(MyPoint ll, MyPoint lr, MyPoint ur, MyPoint ul, int subs ){
+        quad(ll.x, ll.y, ll.z, lr.x, lr.y, lr.z,
+             ur.x, ur.y, ur.z, ul.x, ul.y, ul.z, subs);
+    }
+
+    /**
+     * Scalar version of makeQuad, so that no points are allocated per vertex
+     */
+    private void quad(float llx, float lly, float llz, float lrx, float lry, float lrz,
+                      float urx, float ury, float urz, float ulx, float uly, float ulz,
+                      int subs){
         float subsize = 1.0f/subs;
 
         //Subdivide the quad into columns and draw the columns
         for(int i=0; i<subs; i++){
             float curPos = subsize * i;
-            MyPoint q = ul.mult(1f-curPos).add(ur.mult(curPos));
-            MyPoint r = ll.mult(1f-curPos).add(lr.mult(curPos));
-
-            float iprime = curPos + subsize;
-            MyPoint qPrime = ul.mult(1f-iprime).add(ur.mult(iprime));
-            MyPoint rprime = ll.mult(1f-iprime).add(lr.mult(iprime));
-
-            makeQuadCol(q,r,qPrime,rprime,subs);
+            float c = 1f-curPos;
+            float iprime = subsize * (i+1);
+            float cp = 1f-iprime;
+
+            quadCol(ulx*c + urx*curPos, uly*c + ury*curPos, ulz*c + urz*curPos,
+                    llx*c + lrx*curPos, lly*c + lry*curPos, llz*c + lrz*curPos,
+                    ulx*cp + urx*iprime, uly*cp + ury*iprime, ulz*cp + urz*iprime,
+                    llx*cp + lrx*iprime, lly*cp + lry*iprime, llz*cp + lrz*iprime,
+                    subs);
         }
     }
 
@@ -113,18 +306,57 @@ public class cgShape extends simpleShape
      * Implemented by: Stephen Yingling
      */
     public void makeQuadCol(MyPoint q, MyPoint r, MyPoint qp, MyPoint rp, int numSubs){
+        quadCol(q.x, q.y, q.z, r.x, r.y, r.z,
+                qp.x, qp.y, qp.z, rp.x, rp.y, rp.z, numSubs);
+    }
+
+    /**
+     * Scalar version of makeQuadCol.  Each row reuses the lower edge of the
+     * row above it, so only two new points are computed per row.
+     */
+    private void quadCol(float qx, float qy, float qz, float rx, float ry, float rz,
+                         float qpx, float qpy, float qpz, float rpx, float rpy, float rpz,
+                         int numSubs){
         float sublength = 1f/numSubs;
 
+        if(out == this && isStrips()){
+            //One strip zig-zagging down the column.  The leading repeat of
+            //the first vertex starts the strip on an odd triangle, so the
+            //triangles come out with the same diagonals and winding as the
+            //pairs below.
+            int l = addVertex(qx, qy, qz), r = addVertex(qpx, qpy, qpz);
+            beginStrip();
+            addStripIndex(l);
+            addStripIndex(l);
+            addStripIndex(r);
+            for(int i=0; i < numSubs; i++){
+                float f = (i+1) * sublength, g = 1-f;
+                addStripIndex(addVertex(qx*g + rx*f, qy*g + ry*f, qz*g + rz*f));
+                addStripIndex(addVertex(qpx*g + rpx*f, qpy*g + rpy*f, qpz*g + rpz*f));
+            }
+            return;
+        }
+
+        //The upper edge of the first row
+        int p1 = out.addVertex(qx, qy, qz), p2 = out.addVertex(qpx, qpy, qpz);
+
+        //A column that narrows to a point (the cone's) ends in one vertex,
+        //and its last row in one triangle
+        boolean apex = rx == rpx && ry == rpy && rz == rpz;
+
         //Calculate and draw two triangles for each row
         for(int i=0; i < numSubs; i++){
-            float f = i * sublength;
-            MyPoint p1 = q.mult(1-f).add(r.mult(f)),
-                    p2= qp.mult(1-f).add(rp.mult(f)),
-                    p3 = q.mult(1-(f+sublength)).add(r.mult(f+sublength)),
-                    p4 = qp.mult(1-(f+sublength)).add(rp.mult(f+sublength));
-
-            addTriangle(p3,p4,p2);
-            addTriangle(p3,p2,p1);
+            float f = (i+1) * sublength, g = 1-f;
+            int p3 = out.addVertex(qx*g + rx*f, qy*g + ry*f, qz*g + rz*f);
+            int p4 = (apex && i == numSubs-1) ? p3 :
+                out.addVertex(qpx*g + rpx*f, qpy*g + rpy*f, qpz*g + rpz*f);
+
+            if(p4 != p3)
+                out.addTriangle(p3, p4, p2);
+            out.addTriangle(p3, p2, p1);
+
+            p1 = p3;
+            p2 = p4;
         }
     }
 
@@ -163,36 +395,52 @@ public class cgShape extends simpleShape
         if( heightDivisions < 1 )
             heightDivisions = 1;
 
-        MyPoint origin = new MyPoint(0,0,-.5f);
-
-        MyPoint p1f, p2f, p1b, p2b;
+        final float r = radius;
+        final int radial = radialDivisions, height = heightDivisions;
+        final int parts = sliceParts(radial);
+
+        buildParts(parts, new PartBuilder() {
+            public void build(cgShape s, int part){
+                s.cylinderSlices(r, radial, height,
+                        (int)((long)radial * part / parts),
+                        (int)((long)radial * (part+1) / parts));
+            }
+        });
+    }
 
+    /**
+     * Draws the slices [first, last) of a cylinder
+     */
+    private void cylinderSlices(float radius, int radialDivisions, int heightDivisions,
+                                int first, int last)
+    {
         float rads = (float)Math.toRadians(360f/radialDivisions);
 
-        for(int i=0; i < radialDivisions; i++){
+        //The first point on the rim; each slice reuses the previous one
+        float x2 = radius * (float)Math.cos(first * rads),
+              y2 = radius * (float)Math.sin(first * rads);
+        int bottom = out.addVertex(0, 0, -.5f), top = out.addVertex(0, 0, .5f);
+        int b2 = out.addVertex(x2, y2, -.5f), t2 = out.addVertex(x2, y2, .5f);
 
-            //Make triangles for the disks
-            float curDegs = i * rads;
-            p2f = new MyPoint(radius* (float)Math.cos(curDegs),
-                             radius * (float) Math.sin(curDegs),
-                             -.5f);
-            p1f = new MyPoint(radius* (float)Math.cos(curDegs+rads),
-                    radius * (float) Math.sin(curDegs + rads),
-                    -.5f);
-
-            origin.setZ(-.5f);
-            addTriangle(origin, p1f, p2f);
-
-            origin.setZ(.5f);
-
-            p1b = new MyPoint(p1f.getX(), p1f.getY(),.5f);
-            p2b = new MyPoint(p2f.getX(), p2f.getY(),.5f);
+        for(int i=first; i < last; i++){
 
+            //Make triangles for the disks
+            float curDegs = (i+1) * rads;
+            float x1 = radius * (float)Math.cos(curDegs),
+                  y1 = radius * (float)Math.sin(curDegs);
+            int b1 = out.addVertex(x1, y1, -.5f), t1 = out.addVertex(x1, y1, .5f);
 
-            addTriangle(origin,p2b,p1b);
+            out.addTriangle(bottom, b1, b2);
+            out.addTriangle(top, t2, t1);
 
             //Make the rectangle on the side
-            makeQuadCol(p1f,p1b,p2f,p2b,heightDivisions);
+            quadCol(x1, y1, -.5f, x1, y1, .5f,
+                    x2, y2, -.5f, x2, y2, .5f, heightDivisions);
+
+            x2 = x1;
+            y2 = y1;
+            b2 = b1;
+            t2 = t1;
         }
     }
 
@@ -217,33 +465,79 @@ public class cgShape extends simpleShape
         if( heightDivisions < 1 )
             heightDivisions = 1;
 
-        MyPoint origin = new MyPoint(0,0,-.5f);
-
-        MyPoint p1f, p2f, p1b, p2b;
+        final float r = radius;
+        final int radial = radialDivisions, height = heightDivisions;
+        final int parts = sliceParts(radial);
+
+        buildParts(parts, new PartBuilder() {
+            public void build(cgShape s, int part){
+                s.coneSlices(r, radial, height,
+                        (int)((long)radial * part / parts),
+                        (int)((long)radial * (part+1) / parts));
+            }
+        });
+    }
 
+    /**
+     * Draws the slices [first, last) of a cone
+     */
+    private void coneSlices(float radius, int radialDivisions, int heightDivisions,
+                            int first, int last)
+    {
         float rads = (float)Math.toRadians(360f/radialDivisions);
 
-        //Make the disk
-        for(int i=0; i < radialDivisions; i++){
-            float curDegs = i * rads;
-            p2f = new MyPoint(radius* (float)Math.cos(curDegs),
-                    radius * (float) Math.sin(curDegs),
-                    -.5f);
-            p1f = new MyPoint(radius* (float)Math.cos(curDegs+rads),
-                    radius * (float) Math.sin(curDegs + rads),
-                    -.5f);
+        //The first point on the rim; each slice reuses the previous one
+        float x2 = radius * (float)Math.cos(first * rads),
+              y2 = radius * (float)Math.sin(first * rads);
+        int bottom = out.addVertex(0, 0, -.5f);
+        int b2 = out.addVertex(x2, y2, -.5f);
 
-            origin.setZ(-.5f);
-            addTriangle(origin, p1f, p2f);
+        //Make the disk
+        for(int i=first; i < last; i++){
+            float curDegs = (i+1) * rads;
+            float x1 = radius * (float)Math.cos(curDegs),
+                  y1 = radius * (float)Math.sin(curDegs);
+            int b1 = out.addVertex(x1, y1, -.5f);
 
-            origin.setZ(.5f);
+            out.addTriangle(bottom, b1, b2);
 
             //Make a "quad" with the far points of the quad the same
             //Thus making a conical shape
-            makeQuadCol(p1f,origin,p2f,origin,heightDivisions);
+            quadCol(x1, y1, -.5f, 0, 0, .5f,
+                    x2, y2, -.5f, 0, 0, .5f, heightDivisions);
+
+            x2 = x1;
+            y2 = y1;
+            b2 = b1;
         }
     }
 
+    /**
+     * The corners of the icosahedron the sphere is built from (before
+     * projection onto the sphere), and its twenty faces
+     */
+    private static final float ICO_A = (float)(2/(1+Math.sqrt(5)));
+    private static final float ICO_VERTS[] = {
+        0, ICO_A, -1,      -ICO_A, 1, 0,      ICO_A, 1, 0,       0, ICO_A, 1,
+        -1, 0, ICO_A,      0, -ICO_A, 1,      1, 0, ICO_A,       1, 0, -ICO_A,
+        0, -ICO_A, -1,     -1, 0, -ICO_A,     -ICO_A, -1, 0,     ICO_A, -1, 0
+    };
+    private static final int ICO_FACES[] = {
+        0,1,2,   3,2,1,   3,4,5,   3,5,6,
+        0,7,8,   0,8,9,   5,10,11, 8,11,10,
+        1,9,4,   10,4,9,  2,6,7,   11,7,6,
+        3,1,4,   3,6,2,   0,9,1,   0,2,7,
+        8,10,9,  8,7,11,  5,4,10,  5,11,6
+    };
+
+    /**
+     * Deepest icosphere subdivision built: 655,362 vertices and 1,310,720
+     * triangles, about 35 MB as welded buffers.  Each level beyond is four
+     * times that, and runs a default heap out of memory well before the
+     * index count would overflow.
+     */
+    public static final int MAX_ICO_LEVEL = 8;
+
     /**
      * makeSphere - Makes a sphere using the recursive subdivision method
      *
@@ -251,8 +545,6 @@ public class cgShape extends simpleShape
      * @param slices - number of recursions
      * @param stacks - Not used
      *
-     * Can only use calls to addTriangle
-     *
      * Implemented by Stephen Yingling
      */
     public void makeSphere (float radius, int slices, int stacks)
@@ -260,88 +552,170 @@ public class cgShape extends simpleShape
         if( slices < 3 )
             slices = 3;
 
-        if (slices > 5){
-            slices = 5;
-        }
-
         if( stacks < 3 )
             stacks = 3;
 
-        //Make the isocohedron net
-        float a = (float)(2/(1+Math.sqrt(5))),
-              na = -1*a,
-              p = 1, np = -1*p;
-
-        MyPoint v0 = new MyPoint(0,a,np),
-                v1 = new MyPoint(na,p,0),
-                v2 = new MyPoint(a,p,0),
-                v3 = new MyPoint(0,a,p),
-                v4 = new MyPoint(np,0,a),
-                v5 = new MyPoint(0,na,p),
-                v6 = new MyPoint(p,0,a),
-                v7 = new MyPoint(p,0,na),
-                v8 = new MyPoint(0,na,np),
-                v9 = new MyPoint(np,0,na),
-                v10 = new MyPoint(na,np,0),
-                v11 = new MyPoint(a,np,0);
-
-        //Make recursive triangles
-        recurTriEngels(slices,v0,v1,v2,radius);
-        recurTriEngels(slices,v3,v2,v1,radius);
-        recurTriEngels(slices,v3,v4,v5,radius);
-        recurTriEngels(slices,v3,v5,v6,radius);
-
-        recurTriEngels(slices,v0,v7,v8,radius);
-        recurTriEngels(slices,v0,v8,v9,radius);
-        recurTriEngels(slices,v5,v10,v11,radius);
-        recurTriEngels(slices,v8,v11,v10,radius);
-
-        recurTriEngels(slices,v1,v9,v4,radius);
-        recurTriEngels(slices,v10,v4,v9,radius);
-        recurTriEngels(slices,v2,v6,v7,radius);
-        recurTriEngels(slices,v11,v7,v6,radius);
-
-        recurTriEngels(slices,v3,v1,v4,radius);
-        recurTriEngels(slices,v3,v6,v2,radius);
-        recurTriEngels(slices,v0,v9,v1,radius);
-        recurTriEngels(slices,v0,v2,v7,radius);
-
-        recurTriEngels(slices,v8,v10,v9,radius);
-        recurTriEngels(slices,v8,v7,v11,radius);
-        recurTriEngels(slices,v5,v4,v10,radius);
-        recurTriEngels(slices,v5,v11,v6,radius);
-
-
+        //One recursion is the bare icosahedron
+        makeIcosphere(radius, slices - 1);
     }
 
     /**
-     * Recursively add triangles to the given triangle.
+     * makeIcosphere - Makes a sphere by subdividing an icosahedron level
+     * by level.  Each edge midpoint is created once and shared by the
+     * triangles on both sides of the edge, so the result has exactly
+     * 10*4^levels+2 vertices.  In parallel mode the twenty faces are split
+     * among tasks; the seams between them are only shared when welding.
      *
-     * @param subs - The number of subdivions
-     * @param p0 - The 1st point of the triangle
-     * @param p1 - The 2nd point of the triangle
-     * @param p2 - - The 3rd point of the triangle
-     * @param rad - The radius of the sphere
-     *
-     * Implemented by Stephen Yingling
-     *
-     * If there were three Engels, then Marx would have made triple the money!
+     * @param radius - Radius of the sphere
+     * @param levels - number of times to split each triangle into four
      */
-    public void recurTriEngels(int subs, MyPoint p0, MyPoint p1 , MyPoint p2, float rad){
+    public void makeIcosphere (float radius, int levels)
+    {
+        if( levels < 0 )
+            levels = 0;
+
+        if( levels > MAX_ICO_LEVEL )
+            levels = MAX_ICO_LEVEL;
+
+        final float r = radius;
+        final int lev = levels;
+        final int nFaces = ICO_FACES.length / 3;
+        final int parts = sliceParts(nFaces);
+
+        buildParts(parts, new PartBuilder() {
+            public void build(cgShape s, int part){
+                s.icoPatch(r, lev, nFaces * part / parts, nFaces * (part+1) / parts);
+            }
+        });
+    }
 
-        //Draw at the base case
-        if(subs == 1){
-            addTriangle(p0.mult(rad/p0.getMagnitude()),
-                    p1.mult(rad/p1.getMagnitude()),
-                    p2.mult(rad/p2.getMagnitude()));
+    /**
+     * Subdivides the icosahedron faces [first, last)
+     */
+    private void icoPatch (float radius, int levels, int first, int last)
+    {
+        //Every face adds (2^l+1)(2^l+2)/2 vertices at most
+        long side = (1L << levels) + 1;
+        long bound = ICO_VERTS.length / 3 + (last - first) * side * (side + 1) / 2;
+        int nVerts = (int)Math.min(bound, 10L * (1L << (2*levels)) + 2);
+        float pos[] = new float[nVerts * 3];
+        int count = ICO_VERTS.length / 3;
+        for(int v=0; v < count; v++){
+            float x = ICO_VERTS[v*3], y = ICO_VERTS[v*3+1], z = ICO_VERTS[v*3+2];
+            float s = 1f / (float)Math.sqrt(x*x + y*y + z*z);
+            pos[v*3] = x*s;
+            pos[v*3+1] = y*s;
+            pos[v*3+2] = z*s;
+        }
+
+        int tris[] = Arrays.copyOfRange(ICO_FACES, first*3, last*3);
+
+        //Vertices go to the sink the first time a face uses them
+        int remap[] = new int[nVerts];
+        Arrays.fill(remap, -1);
+        if(out == this)
+            ensureCapacity(nVerts, (last - first) << (2*levels));
+
+        if(levels == 0){
+            for(int i=0; i < tris.length; i += 3)
+                icoTriangle(tris[i], tris[i+1], tris[i+2], pos, remap, radius);
             return;
         }
-        recurTriEngels(subs-1, p0,p0.midPoint(p1),p0.midPoint(p2),rad);
-        recurTriEngels(subs-1, p0.midPoint(p1),p1,p1.midPoint(p2),rad);
-        recurTriEngels(subs-1, p0.midPoint(p2),p1.midPoint(p2),p2,rad);
-        recurTriEngels(subs-1, p0.midPoint(p1),p1.midPoint(p2),p2.midPoint(p0),rad);
+
+        for(int l=0; l < levels; l++){
+            //The last level, four times the size of the one before, goes
+            //straight to the sink instead of into another array
+            boolean emit = l == levels-1;
+            int nTris = tris.length / 3;
+            int next[] = emit ? null : new int[tris.length * 4];
+
+            //Open addressed edge -> midpoint index table; each of the
+            //3/2 * nTris edges is inserted once
+            int cap = Integer.highestOneBit(nTris * 3) << 1;
+            long keys[] = new long[cap];
+            int mids[] = new int[cap];
+            Arrays.fill(keys, -1L);
+
+            for(int t=0; t < nTris; t++){
+                int i0 = tris[t*3], i1 = tris[t*3+1], i2 = tris[t*3+2];
+                int a, b, c;
+
+                //midpoints of (i0,i1), (i1,i2) and (i0,i2)
+                a = midpoint(i0, i1, pos, count, keys, mids);
+                if(a == count) count++;
+                b = midpoint(i1, i2, pos, count, keys, mids);
+                if(b == count) count++;
+                c = midpoint(i0, i2, pos, count, keys, mids);
+                if(c == count) count++;
+
+                if(emit){
+                    icoTriangle(i0, a, c, pos, remap, radius);
+                    icoTriangle(a, i1, b, pos, remap, radius);
+                    icoTriangle(c, b, i2, pos, remap, radius);
+                    icoTriangle(a, b, c, pos, remap, radius);
+                    continue;
+                }
+
+                int o = t*12;
+                next[o]   = i0; next[o+1]  = a;  next[o+2]  = c;
+                next[o+3] = a;  next[o+4]  = i1; next[o+5]  = b;
+                next[o+6] = c;  next[o+7]  = b;  next[o+8]  = i2;
+                next[o+9] = a;  next[o+10] = b;  next[o+11] = c;
+            }
+            if(!emit)
+                tris = next;
+        }
     }
 
+    /**
+     * Send one sphere triangle to the sink, sending each of its vertices
+     * first if no triangle has used it yet
+     */
+    private void icoTriangle(int i, int j, int k, float pos[], int remap[], float radius){
+        int a = icoVertex(i, pos, remap, radius);
+        int b = icoVertex(j, pos, remap, radius);
+        int c = icoVertex(k, pos, remap, radius);
+        out.addTriangle(a, b, c);
+    }
+
+    private int icoVertex(int p, float pos[], int remap[], float radius){
+        if(remap[p] < 0){
+            //Midpoints are interpolated flat and only projected here, at
+            //the leaves, like the original recursive subdivision
+            float x = pos[p*3], y = pos[p*3+1], z = pos[p*3+2];
+            float s = radius / (float)Math.sqrt(x*x + y*y + z*z);
+            remap[p] = out.addVertex(x*s, y*s, z*s);
+        }
+        return remap[p];
+    }
+
+    /**
+     * Find the flat midpoint of an edge, creating it at index next if
+     * the edge has not been split yet
+     *
+     * @return the index of the midpoint vertex
+     */
+    private static int midpoint(int i, int j, float pos[], int next,
+                                long keys[], int mids[]){
+        long key = i < j ? ((long)i << 32) | j : ((long)j << 32) | i;
+        int mask = keys.length - 1;
+        int h = (int)(key ^ (key >>> 29)) * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+
+        while(keys[slot] != -1L){
+            if(keys[slot] == key)
+                return mids[slot];
+            slot = (slot + 1) & mask;
+        }
+
+        pos[next*3] = (pos[i*3] + pos[j*3]) / 2f;
+        pos[next*3+1] = (pos[i*3+1] + pos[j*3+1]) / 2f;
+        pos[next*3+2] = (pos[i*3+2] + pos[j*3+2]) / 2f;
+
+        keys[slot] = key;
+        mids[slot] = next;
+        return next;
+    }
 
     /**
      * A class to represent a point in 3D space
@@ -408,7 +782,7 @@ public class cgShape extends simpleShape
          * Implemented by: Stephen Yingling
          */
         public float getMagnitude(){
-            return (float)Math.sqrt(Math.pow(x,2) + Math.pow(y,2) + Math.pow(z,2));
+            return (float)Math.sqrt(x*x + y*y + z*z);
         }
 
         /**
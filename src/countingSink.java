@@ -0,0 +1,52 @@
+/**
+ * countingSink.java
+ *
+ * A triangleSink that keeps nothing but counts, for a sizing pass ahead of
+ * tessellating into storage that has to be allocated up front.
+ */
+
+public class countingSink implements triangleSink
+{
+    private int nVerts;
+    private int nTriangles;
+
+    public countingSink()
+    {
+        nVerts = 0;
+        nTriangles = 0;
+    }
+
+    public int addVertex (float x, float y, float z)
+    {
+        return nVerts++;
+    }
+
+    public void addTriangle (int v0, int v1, int v2)
+    {
+        nTriangles++;
+    }
+
+    public int getNVerts()
+    {
+        return nVerts;
+    }
+
+    public int getNTriangles()
+    {
+        return nTriangles;
+    }
+
+    /**
+     * bytes needed to hold what was counted, with four floats per vertex
+     * and indices of the given size
+     */
+    public long getByteSize (int indexSize)
+    {
+        return nVerts * 16l + nTriangles * 3l * indexSize;
+    }
+
+    public String toString()
+    {
+        return nVerts + " vertices, " + nTriangles + " triangles";
+    }
+}
@@ -0,0 +1,388 @@
+/**
+ * frameMetrics.java
+ *
+ * Where the time goes: tessellation, uploads, CPU frame time and GPU draw
+ * time, with rolling percentiles over the last WINDOW samples of each and
+ * running totals of triangles, vertices and bytes.  Recorded from the GL
+ * thread and the tessellator thread, read from anywhere.
+ *
+ * The same numbers go out three ways:
+ *
+ *   JMX    register() publishes this object as tess:type=frameMetrics
+ *          (see frameMetricsMBean)
+ *   JFR    each tessellation, upload and frame is also a flight recorder
+ *          event (tess.Tessellation, tess.Upload, tess.Frame), which
+ *          costs next to nothing unless a recording is running, e.g.
+ *          java -XX:StartFlightRecording=filename=tess.jfr tessMain
+ *   text   getOverlay() gives lines for tessMain's on-screen overlay
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import jdk.jfr.*;
+
+
+public class frameMetrics implements frameMetricsMBean
+{
+    /**
+     * number of samples the percentiles are taken over
+     */
+    public static final int WINDOW = 256;
+
+    /**
+     * the last WINDOW samples of one measurement, in nanoseconds.  A sorted
+     * copy is kept and only sorted again after new samples, so reading
+     * several percentiles a frame costs one sort.
+     */
+    static class Series
+    {
+        private final long samples[] = new long[WINDOW];
+        private final long sorted[] = new long[WINDOW];
+        private boolean sortedValid;
+        private int size;
+        private int next;
+        private long count;
+        private long last;
+
+        synchronized void add (long nanos)
+        {
+            samples[next] = nanos;
+            next = (next + 1) % WINDOW;
+            size = Math.min (size + 1, WINDOW);
+            count++;
+            last = nanos;
+            sortedValid = false;
+        }
+
+        /**
+         * the pth percentile in milliseconds, NaN with no samples
+         */
+        synchronized double percentile (double p)
+        {
+            if (size == 0)
+                return Double.NaN;
+            if (!sortedValid) {
+                System.arraycopy (samples, 0, sorted, 0, size);
+                Arrays.sort (sorted, 0, size);
+                sortedValid = true;
+            }
+            int i = (int) Math.ceil (p / 100.0 * size) - 1;
+            return sorted[Math.max (0, Math.min (size - 1, i))] / 1e6;
+        }
+
+        synchronized long getCount()
+        {
+            return count;
+        }
+
+        synchronized double getLast()
+        {
+            return count == 0 ? Double.NaN : last / 1e6;
+        }
+
+        synchronized void clear()
+        {
+            size = 0;
+            next = 0;
+            count = 0;
+            sortedValid = false;
+        }
+    }
+
+    @Name ("tess.Tessellation")
+    @Label ("Tessellation")
+    @Category ("Tessellation")
+    public static class TessellationEvent extends Event
+    {
+        transient long start;
+
+        @Label ("Shape")
+        String shape;
+        @Label ("Triangles")
+        int triangles;
+        @Label ("Vertices")
+        int vertices;
+    }
+
+    @Name ("tess.Upload")
+    @Label ("Upload")
+    @Category ("Tessellation")
+    public static class UploadEvent extends Event
+    {
+        transient long start;
+
+        @Label ("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name ("tess.Frame")
+    @Label ("Frame")
+    @Category ("Tessellation")
+    public static class FrameEvent extends Event
+    {
+        transient long start;
+
+        @Label ("Triangles Drawn")
+        int triangles;
+        @Label ("GPU Draw Time")
+        @Timespan
+        long gpuNanos;
+    }
+
+    private final Series cpuFrame = new Series();
+    private final Series gpuDraw = new Series();
+    private final Series tessellation = new Series();
+    private final Series upload = new Series();
+
+    private volatile long trianglesProduced;
+    private volatile long verticesProduced;
+    private volatile long bytesUploaded;
+    private volatile int trianglesDrawn;
+    private final AtomicLong glErrors = new AtomicLong();
+    private volatile long lastGpuNanos = -1;
+
+    /**
+     * publish over JMX.  Failure is reported and otherwise ignored, as the
+     * metrics are still recorded.
+     */
+    public void register()
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean (
+                this, new ObjectName ("tess:type=frameMetrics"));
+        } catch (JMException e) {
+            System.err.println ("Cannot register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * mark the start of a tessellation, upload or frame.  The event times
+     * it for JFR, and start for the percentiles (JFR does not hand its
+     * timings back).
+     */
+    public static TessellationEvent startTessellation()
+    {
+        TessellationEvent e = new TessellationEvent();
+        e.begin();
+        e.start = System.nanoTime();
+        return e;
+    }
+
+    public static UploadEvent startUpload()
+    {
+        UploadEvent e = new UploadEvent();
+        e.begin();
+        e.start = System.nanoTime();
+        return e;
+    }
+
+    public static FrameEvent startFrame()
+    {
+        FrameEvent e = new FrameEvent();
+        e.begin();
+        e.start = System.nanoTime();
+        return e;
+    }
+
+    /**
+     * a shape was tessellated, starting when the event was started
+     */
+    public void tessellated (TessellationEvent e, String shape, int triangles, int vertices)
+    {
+        e.end();
+        tessellation.add (System.nanoTime() - e.start);
+        synchronized (this) {
+            trianglesProduced += triangles;
+            verticesProduced += vertices;
+        }
+        if (e.shouldCommit()) {
+            e.shape = shape;
+            e.triangles = triangles;
+            e.vertices = vertices;
+            e.commit();
+        }
+    }
+
+    /**
+     * bytes were uploaded to the vertex and element buffers
+     */
+    public void uploaded (UploadEvent e, long bytes)
+    {
+        e.end();
+        upload.add (System.nanoTime() - e.start);
+        synchronized (this) {
+            bytesUploaded += bytes;
+        }
+        if (e.shouldCommit()) {
+            e.bytes = bytes;
+            e.commit();
+        }
+    }
+
+    /**
+     * a frame was drawn.  Its GPU time is only known a few frames later,
+     * so the event carries the latest GPU time available.
+     */
+    public void frame (FrameEvent e, int triangles)
+    {
+        e.end();
+        cpuFrame.add (System.nanoTime() - e.start);
+        trianglesDrawn = triangles;
+        if (e.shouldCommit()) {
+            e.triangles = triangles;
+            e.gpuNanos = lastGpuNanos;
+            e.commit();
+        }
+    }
+
+    /**
+     * a timer query came back
+     */
+    public void gpuDraw (long nanos)
+    {
+        gpuDraw.add (nanos);
+        lastGpuNanos = nanos;
+    }
+
+    public void glError (int code)
+    {
+        glErrors.incrementAndGet();
+    }
+
+    public long getFrames()
+    {
+        return cpuFrame.getCount();
+    }
+
+    public double getCpuFrameP50()
+    {
+        return cpuFrame.percentile (50);
+    }
+
+    public double getCpuFrameP95()
+    {
+        return cpuFrame.percentile (95);
+    }
+
+    public double getCpuFrameP99()
+    {
+        return cpuFrame.percentile (99);
+    }
+
+    public double getGpuDrawP50()
+    {
+        return gpuDraw.percentile (50);
+    }
+
+    public double getGpuDrawP95()
+    {
+        return gpuDraw.percentile (95);
+    }
+
+    public double getGpuDrawP99()
+    {
+        return gpuDraw.percentile (99);
+    }
+
+    public long getTessellations()
+    {
+        return tessellation.getCount();
+    }
+
+    public double getTessellationP50()
+    {
+        return tessellation.percentile (50);
+    }
+
+    public double getTessellationP95()
+    {
+        return tessellation.percentile (95);
+    }
+
+    public long getTrianglesProduced()
+    {
+        return trianglesProduced;
+    }
+
+    public long getVerticesProduced()
+    {
+        return verticesProduced;
+    }
+
+    public long getUploads()
+    {
+        return upload.getCount();
+    }
+
+    public double getUploadP50()
+    {
+        return upload.percentile (50);
+    }
+
+    public double getUploadP95()
+    {
+        return upload.percentile (95);
+    }
+
+    public long getBytesUploaded()
+    {
+        return bytesUploaded;
+    }
+
+    public int getTrianglesDrawn()
+    {
+        return trianglesDrawn;
+    }
+
+    public long getGlErrors()
+    {
+        return glErrors.get();
+    }
+
+    /**
+     * lines of text for an on-screen overlay
+     */
+    public String[] getOverlay()
+    {
+        return new String[] {
+            String.format ("frame cpu  p50 %.2f  p95 %.2f  p99 %.2f ms",
+                           getCpuFrameP50(), getCpuFrameP95(), getCpuFrameP99()),
+            String.format ("draw gpu   p50 %.2f  p95 %.2f  p99 %.2f ms",
+                           getGpuDrawP50(), getGpuDrawP95(), getGpuDrawP99()),
+            String.format ("tessellate last %.1f  p95 %.1f ms, %,d triangles made",
+                           tessellation.getLast(), getTessellationP95(), trianglesProduced),
+            String.format ("upload     last %.2f ms, %,d bytes in all",
+                           upload.getLast(), bytesUploaded),
+            String.format ("%,d triangles drawn, %d GL errors", trianglesDrawn, glErrors.get())
+        };
+    }
+
+    public String getSummary()
+    {
+        StringBuilder b = new StringBuilder();
+        for (String line : getOverlay())
+            b.append (line).append ('\n');
+        return b.toString();
+    }
+
+    public synchronized void reset()
+    {
+        cpuFrame.clear();
+        gpuDraw.clear();
+        tessellation.clear();
+        upload.clear();
+        trianglesProduced = 0;
+        verticesProduced = 0;
+        bytesUploaded = 0;
+        glErrors.set (0);
+        lastGpuNanos = -1;
+    }
+
+    public String toString()
+    {
+        return getSummary();
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * frameMetricsMBean.java
+ *
+ * What frameMetrics shows over JMX (as tess:type=frameMetrics, e.g. in
+ * jconsole).  Times are in milliseconds and percentiles are over the
+ * last frameMetrics.WINDOW samples of each kind.
+ */
+
+public interface frameMetricsMBean
+{
+    long getFrames();
+    double getCpuFrameP50();
+    double getCpuFrameP95();
+    double getCpuFrameP99();
+
+    /**
+     * GPU time of the draw calls, from timer queries; NaN if the driver
+     * has no timer queries
+     */
+    double getGpuDrawP50();
+    double getGpuDrawP95();
+    double getGpuDrawP99();
+
+    long getTessellations();
+    double getTessellationP50();
+    double getTessellationP95();
+    long getTrianglesProduced();
+    long getVerticesProduced();
+
+    long getUploads();
+    double getUploadP50();
+    double getUploadP95();
+    long getBytesUploaded();
+
+    int getTrianglesDrawn();
+    long getGlErrors();
+
+    String getSummary();
+    void reset();
+}
@@ -0,0 +1,139 @@
+/**
+ * glBufferSink.java
+ *
+ * A triangleSink that writes vertices and indices straight into a
+ * bufferManager's mapped vertex and element buffers, so a mesh goes to
+ * the GPU without ever being held in client memory.  The buffers are
+ * sized up front, normally from a countingSink pass over the same shape:
+ *
+ *     countingSink count = new countingSink();
+ *     shape.makeShape (count, type, d1, d2);
+ *     glBufferSink sink = new glBufferSink (gl2, buffers, count);
+ *     shape.makeShape (sink, type, d1, d2);
+ *     sink.finish (gl2);
+ *
+ * Vertices are four floats (x, y, z, 1) as in simpleShape, and indices use
+ * the narrowest width that can address every vertex.
+ */
+
+import java.nio.*;
+import javax.media.opengl.*;
+
+
+public class glBufferSink implements triangleSink
+{
+    private final bufferManager buffers;
+    private final int maxVerts;
+    private final int maxTriangles;
+    private final int indexSize;
+
+    /**
+     * the mapped storage; null once finished
+     */
+    private ByteBuffer vertices;
+    private ByteBuffer elements;
+
+    private int nVerts;
+    private int nTriangles;
+
+    /**
+     * map buffers with room for the given number of vertices and
+     * triangles.  Must be called, and used, on the GL thread.
+     */
+    public glBufferSink (GL2 gl2, bufferManager buffers, int maxVerts, int maxTriangles)
+    {
+        this (buffers.calls (gl2), buffers, maxVerts, maxTriangles);
+    }
+
+    public glBufferSink (bufferCalls gl2, bufferManager buffers, int maxVerts, int maxTriangles)
+    {
+        this.buffers = buffers;
+        this.maxVerts = maxVerts;
+        this.maxTriangles = maxTriangles;
+        indexSize = simpleShape.indexSize (maxVerts);
+
+        ByteBuffer maps[] = buffers.map (gl2, maxVerts * 16l, maxTriangles * 3l * indexSize);
+        vertices = maps[0].order (ByteOrder.nativeOrder());
+        elements = maps[1].order (ByteOrder.nativeOrder());
+        nVerts = 0;
+        nTriangles = 0;
+    }
+
+    /**
+     * map buffers sized by a counting pass
+     */
+    public glBufferSink (GL2 gl2, bufferManager buffers, countingSink count)
+    {
+        this (buffers.calls (gl2), buffers, count);
+    }
+
+    public glBufferSink (bufferCalls gl2, bufferManager buffers, countingSink count)
+    {
+        this (gl2, buffers, count.getNVerts(), count.getNTriangles());
+    }
+
+    public int addVertex (float x, float y, float z)
+    {
+        if (nVerts == maxVerts)
+            throw new IllegalStateException ("buffer sized for " + maxVerts + " vertices");
+
+        vertices.putFloat (x).putFloat (y).putFloat (z).putFloat (1.0f);
+        return nVerts++;
+    }
+
+    public void addTriangle (int v0, int v1, int v2)
+    {
+        if (nTriangles == maxTriangles)
+            throw new IllegalStateException ("buffer sized for " + maxTriangles + " triangles");
+
+        switch (indexSize) {
+            case 1: elements.put ((byte) v0).put ((byte) v1).put ((byte) v2); break;
+            case 2: elements.putShort ((short) v0).putShort ((short) v1).putShort ((short) v2); break;
+            default: elements.putInt (v0).putInt (v1).putInt (v2); break;
+        }
+        nTriangles++;
+    }
+
+    /**
+     * unmap the buffers so they can be drawn from
+     *
+     * @return false if the contents were lost while mapped and the shape
+     *         has to be written again
+     */
+    public boolean finish (GL2 gl2)
+    {
+        return finish (buffers.calls (gl2));
+    }
+
+    public boolean finish (bufferCalls gl2)
+    {
+        vertices = null;
+        elements = null;
+        return buffers.unmap (gl2);
+    }
+
+    public int getNVerts()
+    {
+        return nVerts;
+    }
+
+    public int getNTriangles()
+    {
+        return nTriangles;
+    }
+
+    public int getNElements()
+    {
+        return nTriangles * 3;
+    }
+
+    public int getElementSize()
+    {
+        return indexSize;
+    }
+
+    public int getElementType()
+    {
+        return simpleShape.elementType (indexSize);
+    }
+}
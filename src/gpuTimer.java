@@ -0,0 +1,114 @@
+/**
+ * gpuTimer.java
+ *
+ * Times GL work with GL_TIME_ELAPSED queries without stalling.  A query's
+ * result is only ready a frame or two after the work it timed, so the
+ * timer keeps a small ring of queries in flight: begin()/end() bracket
+ * this frame's work, and poll() hands back results from earlier frames
+ * as they arrive.  If every query is still in flight begin() skips the
+ * frame rather than wait.
+ *
+ * Needs ARB_timer_query (core in GL 3.3) on a context JOGL exposes as
+ * GL3, or else EXT_timer_query; each is used through its own entry
+ * points, as a driver need not provide the other's.  Without either,
+ * begin() always returns false.  All calls must be made on the GL thread.
+ */
+
+import javax.media.opengl.*;
+import com.jogamp.common.util.VersionNumber;
+
+
+public class gpuTimer
+{
+    /**
+     * queries in flight at most
+     */
+    private static final int QUERIES = 4;
+
+    private final int queries[] = new int[QUERIES];
+    private final boolean available;
+
+    /**
+     * true to use ARB_timer_query through GL3, false for EXT_timer_query
+     */
+    private final boolean arb;
+
+    /**
+     * queries are issued at next and collected from oldest; pending of
+     * them are in flight
+     */
+    private int next;
+    private int oldest;
+    private int pending;
+    private boolean running;
+
+    private final int status[] = new int[1];
+    private final long result[] = new long[1];
+
+    public gpuTimer (GL2 gl2)
+    {
+        arb = gl2.isGL3() && gl2.isFunctionAvailable ("glGetQueryObjectui64v") &&
+              (gl2.isExtensionAvailable ("GL_ARB_timer_query") ||
+               gl2.getContext().getGLVersionNumber().compareTo (new VersionNumber (3, 3, 0)) >= 0);
+        available = arb || gl2.isExtensionAvailable ("GL_EXT_timer_query");
+        if (available)
+            gl2.glGenQueries (QUERIES, queries, 0);
+    }
+
+    public boolean isAvailable()
+    {
+        return available;
+    }
+
+    /**
+     * start timing
+     *
+     * @return false if the timer is unavailable or busy, in which case
+     *         end() does nothing
+     */
+    public boolean begin (GL2 gl2)
+    {
+        if (!available || pending == QUERIES)
+            return false;
+        gl2.glBeginQuery (arb ? GL3.GL_TIME_ELAPSED : GL2.GL_TIME_ELAPSED_EXT, queries[next]);
+        running = true;
+        return true;
+    }
+
+    public void end (GL2 gl2)
+    {
+        if (!running)
+            return;
+        gl2.glEndQuery (arb ? GL3.GL_TIME_ELAPSED : GL2.GL_TIME_ELAPSED_EXT);
+        running = false;
+        next = (next + 1) % QUERIES;
+        pending++;
+    }
+
+    /**
+     * collect the oldest result, if it is ready
+     *
+     * @return the elapsed GPU time in nanoseconds, or -1 if none is ready
+     */
+    public long poll (GL2 gl2)
+    {
+        if (pending == 0)
+            return -1;
+        gl2.glGetQueryObjectiv (queries[oldest], GL2.GL_QUERY_RESULT_AVAILABLE, status, 0);
+        if (status[0] == GL.GL_FALSE)
+            return -1;
+        if (arb)
+            gl2.getGL3().glGetQueryObjectui64v (queries[oldest], GL2.GL_QUERY_RESULT, result, 0);
+        else
+            gl2.glGetQueryObjecti64vEXT (queries[oldest], GL2.GL_QUERY_RESULT, result, 0);
+        oldest = (oldest + 1) % QUERIES;
+        pending--;
+        return result[0];
+    }
+
+    public void dispose (GL2 gl2)
+    {
+        if (available)
+            gl2.glDeleteQueries (QUERIES, queries, 0);
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * instanceSet.java
+ *
+ * Per-instance transforms for drawing many copies of one shape with a
+ * single glDrawElementsInstanced call.  Each instance gets its own
+ * orientation, scale and offset, composed once on the CPU into a
+ * column-major matrix.  The matrices live in their own vertex buffer and
+ * feed a mat4 attribute that advances once per instance, so the per-frame
+ * cost does not grow with the number of instances.
+ *
+ * Instances are laid out on a cubic grid that stays inside the view
+ * volume under any rotation of the whole scene.
+ */
+
+import java.nio.*;
+import java.util.*;
+import javax.media.opengl.*;
+
+
+public class instanceSet
+{
+    /**
+     * floats per instance (one 4x4 matrix)
+     */
+    public static final int FLOATS = 16;
+
+    /**
+     * most instances a set holds: 16 MB of matrices
+     */
+    public static final int MAX_COUNT = 1 << 18;
+
+    /**
+     * number of instances and their matrices
+     */
+    private int count;
+    private float scale;
+    private FloatBuffer matrices;
+
+    /**
+     * instance buffer name (0 until first uploaded), its capacity in bytes,
+     * and whether the matrices changed since the last upload
+     */
+    private int ibuffer;
+    private long capacity;
+    private boolean dirty;
+
+    /**
+     * constructor
+     *
+     * @param count number of instances
+     * @param seed  seed for the per-instance orientations
+     */
+    public instanceSet (int count, long seed)
+    {
+        ibuffer = 0;
+        capacity = 0;
+        setCount (count, seed);
+    }
+
+    /**
+     * lay out a new number of instances, from 1 to MAX_COUNT
+     */
+    public void setCount (int n, long seed)
+    {
+        if (n < 1 || n > MAX_COUNT)
+            throw new IllegalArgumentException ("instance count must be from 1 to " + MAX_COUNT +
+                                                ": " + n);
+
+        count = n;
+        matrices = ByteBuffer.allocateDirect (n * FLOATS * 4)
+                             .order (ByteOrder.nativeOrder()).asFloatBuffer();
+
+        // the grid spans [-extent, extent] so that its corners, sqrt(3) *
+        // extent from the centre, stay inside the unit view volume
+        int side = (int) Math.ceil (Math.cbrt (n));
+        float extent = 0.55f;
+        float cell = 2 * extent / side;
+        scale = cell * 0.9f;
+
+        Random r = new Random (seed);
+        float angles[] = new float[3];
+        float m[] = new float[FLOATS];
+        for (int i = 0; i < n; i++) {
+            int gx = i % side, gy = (i / side) % side, gz = i / (side * side);
+
+            angles[0] = r.nextFloat() * 360.0f;
+            angles[1] = r.nextFloat() * 360.0f;
+            angles[2] = r.nextFloat() * 360.0f;
+            tessMain.rotationMatrix (angles, m);
+
+            // scale the rotation columns and put the cell centre in the
+            // translation column
+            for (int j = 0; j < 12; j++)
+                m[j] *= scale;
+            m[12] = -extent + (gx + 0.5f) * cell;
+            m[13] = -extent + (gy + 0.5f) * cell;
+            m[14] = -extent + (gz + 0.5f) * cell;
+
+            matrices.put (m);
+        }
+        matrices.flip();
+        dirty = true;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * the scale applied to each instance
+     */
+    public float getScale()
+    {
+        return scale;
+    }
+
+    /**
+     * the instance matrices, FLOATS per instance, column-major
+     */
+    public FloatBuffer getMatrices()
+    {
+        return matrices.duplicate();
+    }
+
+    public long getByteSize()
+    {
+        return (long) count * FLOATS * 4;
+    }
+
+    /**
+     * send the matrices to the GPU if they changed and point the four
+     * columns of the mat4 attribute at location at them.  Leaves the
+     * instance buffer bound to GL_ARRAY_BUFFER.
+     */
+    public void bind (GL2 gl2, int location)
+    {
+        if (ibuffer == 0) {
+            int bf[] = new int[1];
+            gl2.glGenBuffers (1, bf, 0);
+            ibuffer = bf[0];
+        }
+        gl2.glBindBuffer (GL.GL_ARRAY_BUFFER, ibuffer);
+
+        if (dirty) {
+            long bytes = getByteSize();
+            if (bytes > capacity) {
+                capacity = bytes;
+                gl2.glBufferData (GL.GL_ARRAY_BUFFER, bytes, matrices, GL.GL_STATIC_DRAW);
+            } else {
+                gl2.glBufferSubData (GL.GL_ARRAY_BUFFER, 0, bytes, matrices);
+            }
+            dirty = false;
+        }
+
+        // JOGL only declares the divisor on the GL3-level interfaces; the
+        // desktop GL2 implementation provides them too
+        GL3ES3 gl3 = (GL3ES3) gl2;
+        for (int c = 0; c < 4; c++) {
+            gl2.glEnableVertexAttribArray (location + c);
+            gl2.glVertexAttribPointer (location + c, 4, GL.GL_FLOAT, false,
+                                       FLOATS * 4, c * 4 * 4l);
+            gl3.glVertexAttribDivisor (location + c, 1);
+        }
+    }
+
+    /**
+     * turn the instanced attribute back off
+     */
+    public void unbind (GL2 gl2, int location)
+    {
+        GL3ES3 gl3 = (GL3ES3) gl2;
+        for (int c = 0; c < 4; c++) {
+            gl3.glVertexAttribDivisor (location + c, 0);
+            gl2.glDisableVertexAttribArray (location + c);
+        }
+    }
+
+    /**
+     * release the instance buffer
+     */
+    public void dispose (GL2 gl2)
+    {
+        if (ibuffer != 0) {
+            int bf[] = { ibuffer };
+            gl2.glDeleteBuffers (1, bf, 0);
+        }
+        ibuffer = 0;
+        capacity = 0;
+        dirty = true;
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * lodChain.java
+ *
+ * A chain of meshes for one shape at decreasing levels of detail, and the
+ * logic for choosing among them at draw time.  Level 0 is the shape at the
+ * requested divisions; each later level halves the divisions (or, for the
+ * sphere, drops one subdivision level) until nothing coarser is possible.
+ *
+ * A level is chosen either from the shape's projected size on screen or
+ * from a triangle budget.  Both selections have hysteresis: the current
+ * level is kept until the wanted triangle count moves a set fraction past
+ * what the neighbouring level offers, so a size or budget hovering at a
+ * boundary does not make the level flicker.
+ */
+
+import java.util.*;
+
+
+public class lodChain
+{
+    /**
+     * builds the mesh for one level
+     */
+    public interface LevelBuilder {
+        meshData build (int shape, int division1, int division2);
+    }
+
+    /**
+     * default screen-size target: about one triangle per this many square
+     * pixels of the shape's projected bounding square
+     */
+    public static final float PIXELS_PER_TRIANGLE = 8.0f;
+
+    /**
+     * default hysteresis, as a fraction of a level's triangle count
+     */
+    public static final float HYSTERESIS = 0.25f;
+
+    private final int shape;
+    private final int division1[];
+    private final int division2[];
+    private final meshData levels[];
+
+    private float pixelsPerTriangle = PIXELS_PER_TRIANGLE;
+    private float hysteresis = HYSTERESIS;
+
+    /**
+     * the level chosen by the last selection
+     */
+    private int current = 0;
+
+    /**
+     * build a chain of at most maxLevels levels starting at the given
+     * divisions
+     */
+    public lodChain (int shape, int division1, int division2, int maxLevels,
+                     LevelBuilder builder)
+    {
+        if (maxLevels < 1)
+            throw new IllegalArgumentException ("need at least one level: " + maxLevels);
+
+        int d1[] = new int[maxLevels];
+        int d2[] = new int[maxLevels];
+        meshData m[] = new meshData[maxLevels];
+        int n = 0;
+        d1[0] = cgShape.usedDivision1 (shape, division1);
+        d2[0] = cgShape.usedDivision2 (shape, division2);
+        m[0] = builder.build (shape, d1[0], d2[0]);
+        for (n = 1; n < maxLevels; n++) {
+            d1[n] = cgShape.usedDivision1 (shape, (shape == tessMain.SPHERE) ?
+                                           d1[n - 1] - 1 : d1[n - 1] / 2);
+            d2[n] = cgShape.usedDivision2 (shape, d2[n - 1] / 2);
+            if (d1[n] == d1[n - 1] && d2[n] == d2[n - 1])
+                break;
+
+            // the generators clamp small divisions, so stop once a level
+            // comes out no coarser than the one before
+            m[n] = builder.build (shape, d1[n], d2[n]);
+            if (m[n].getNTriangles() >= m[n - 1].getNTriangles())
+                break;
+        }
+
+        this.shape = shape;
+        this.division1 = Arrays.copyOf (d1, n);
+        this.division2 = Arrays.copyOf (d2, n);
+        levels = Arrays.copyOf (m, n);
+    }
+
+    public void setPixelsPerTriangle (float p)
+    {
+        pixelsPerTriangle = p;
+    }
+
+    public void setHysteresis (float h)
+    {
+        hysteresis = h;
+    }
+
+    public int getShape()
+    {
+        return shape;
+    }
+
+    public int getNLevels()
+    {
+        return levels.length;
+    }
+
+    public meshData getLevel (int level)
+    {
+        return levels[level];
+    }
+
+    public int getDivision1 (int level)
+    {
+        return division1[level];
+    }
+
+    public int getDivision2 (int level)
+    {
+        return division2[level];
+    }
+
+    /**
+     * the level chosen by the last selection
+     */
+    public int getCurrentLevel()
+    {
+        return current;
+    }
+
+    private long triangles (int level)
+    {
+        return levels[level].getNTriangles();
+    }
+
+    /**
+     * choose a level for a shape whose projected bounding square is size
+     * pixels across
+     *
+     * @return the chosen level
+     */
+    public int selectByScreenSize (float size)
+    {
+        float wanted = size * size / pixelsPerTriangle;
+
+        // too coarse: refine to the coarsest level that has enough triangles
+        if (wanted > triangles (current) * (1 + hysteresis)) {
+            while (current > 0 && triangles (current) < wanted)
+                current--;
+        }
+
+        // more than enough: coarsen while the next level still has enough,
+        // with the same margin
+        while (current + 1 < levels.length &&
+               triangles (current + 1) >= wanted * (1 + hysteresis))
+            current++;
+
+        return current;
+    }
+
+    /**
+     * choose the finest level that keeps count copies of the shape within
+     * budget triangles.  Going over the budget coarsens at once; refining
+     * waits until the finer level fits with the hysteresis margin to spare.
+     *
+     * @return the chosen level
+     */
+    public int selectByBudget (long budget, int count)
+    {
+        double allowed = (double) budget / Math.max (1, count);
+
+        while (current + 1 < levels.length && triangles (current) > allowed)
+            current++;
+        while (current > 0 && triangles (current - 1) <= allowed * (1 - hysteresis))
+            current--;
+
+        return current;
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder (cgShape.SHAPE_NAMES[shape]);
+        for (int i = 0; i < levels.length; i++) {
+            sb.append (i == 0 ? " " : ", ");
+            sb.append (division1[i] + ":" + division2[i] + "=" + triangles (i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * meshBatch.java
+ *
+ * Static batching: many meshes packed into one vertex buffer and one
+ * element buffer, each placed (moved and scaled) as it is added, and all
+ * drawn with a single glMultiDrawElements call however many there are.
+ *
+ * An offset table records where each mesh landed: its first element and
+ * number of elements, and its first vertex and number of vertices.
+ * Indices are rebased onto the shared vertex buffer as meshes are added,
+ * so the batch is itself a meshData and uploads like any other shape;
+ * draw() then issues one range per visible mesh.  Meshes can be hidden
+ * and shown without touching the buffers.
+ *
+ * All meshes in a batch must share a primitive type.  Strips keep their
+ * restarts, renumbered to the batch's restart index, and a restart also
+ * separates each mesh from the one before, so the element buffer is still
+ * right drawn whole.
+ */
+
+import java.nio.*;
+import java.util.*;
+import com.jogamp.common.nio.PointerBuffer;
+import javax.media.opengl.*;
+
+
+public class meshBatch implements meshData
+{
+    /**
+     * packed vertices, four floats each, and rebased indices (restarts
+     * held as -1 until the index width is known)
+     */
+    private float points[];
+    private int nVerts;
+    private int elements[];
+    private int nElements;
+    private int nTriangles;
+    private int primitiveType = -1;
+
+    /**
+     * the offset table, one entry per mesh
+     */
+    private int count;
+    private int firstElement[];
+    private int elementCount[];
+    private int firstVertex[];
+    private int vertexCount[];
+    private int triangleCount[];
+    private boolean visible[];
+
+    /**
+     * the element buffer at its final width, made on first use after the
+     * last add()
+     */
+    private Buffer packed;
+    private int indexSize;
+
+    /**
+     * per-draw tables handed to GL (made on first use, as PointerBuffer
+     * needs the native GL libraries)
+     */
+    private IntBuffer countBuffer;
+    private PointerBuffer offsetBuffer;
+
+    public meshBatch()
+    {
+        points = new float[1024];
+        elements = new int[1024];
+        firstElement = new int[4];
+        elementCount = new int[4];
+        firstVertex = new int[4];
+        vertexCount = new int[4];
+        triangleCount = new int[4];
+        visible = new boolean[4];
+    }
+
+    /**
+     * add a mesh, scaled about its origin and then moved to (x, y, z)
+     *
+     * @return the mesh's index in the offset table
+     */
+    public int add (meshData mesh, float x, float y, float z, float scale)
+    {
+        if (primitiveType == -1)
+            primitiveType = mesh.getPrimitiveType();
+        else if (mesh.getPrimitiveType() != primitiveType)
+            throw new IllegalArgumentException ("cannot batch meshes of different primitive types");
+
+        int verts = mesh.getNVerts();
+        int elems = mesh.getNElements();
+        boolean strips = (primitiveType == GL.GL_TRIANGLE_STRIP);
+        int gap = (strips && nElements > 0) ? 1 : 0;
+        if ((long) nVerts + verts > Integer.MAX_VALUE / 4 ||
+            (long) nElements + gap + elems > Integer.MAX_VALUE)
+            throw new IllegalArgumentException ("batch too large");
+
+        // the vertices, placed
+        if (points.length < (nVerts + verts) * 4)
+            points = Arrays.copyOf (points, Math.max (points.length * 2, (nVerts + verts) * 4));
+        FloatBuffer v = (FloatBuffer) mesh.getVertices();
+        for (int i = 0; i < verts; i++) {
+            int from = i * 4, to = (nVerts + i) * 4;
+            points[to] = v.get (from) * scale + x;
+            points[to + 1] = v.get (from + 1) * scale + y;
+            points[to + 2] = v.get (from + 2) * scale + z;
+            points[to + 3] = 1.0f;
+        }
+
+        // the elements, rebased past the vertices already in the batch
+        if (elements.length < nElements + gap + elems)
+            elements = Arrays.copyOf (elements, Math.max (elements.length * 2, nElements + gap + elems));
+        if (gap > 0)
+            elements[nElements++] = -1;
+        Buffer e = mesh.getElements();
+        int restart = strips ? mesh.getRestartIndex() : -1;
+        for (int i = 0; i < elems; i++) {
+            int index = meshFile.index (e, i);
+            elements[nElements + i] = (strips && index == restart) ? -1 : index + nVerts;
+        }
+
+        if (count == firstElement.length) {
+            firstElement = Arrays.copyOf (firstElement, count * 2);
+            elementCount = Arrays.copyOf (elementCount, count * 2);
+            firstVertex = Arrays.copyOf (firstVertex, count * 2);
+            vertexCount = Arrays.copyOf (vertexCount, count * 2);
+            triangleCount = Arrays.copyOf (triangleCount, count * 2);
+            visible = Arrays.copyOf (visible, count * 2);
+        }
+        firstElement[count] = nElements;
+        elementCount[count] = elems;
+        firstVertex[count] = nVerts;
+        vertexCount[count] = verts;
+        triangleCount[count] = mesh.getNTriangles();
+        visible[count] = true;
+
+        nVerts += verts;
+        nElements += elems;
+        nTriangles += mesh.getNTriangles();
+        packed = null;
+        return count++;
+    }
+
+    /**
+     * narrow the elements to the width the batch's vertex count needs
+     */
+    private void pack()
+    {
+        indexSize = simpleShape.indexSize (nVerts);
+        int restart = getRestartIndex();
+        ByteBuffer b = ByteBuffer.allocateDirect (Math.max (1, nElements * indexSize))
+                                 .order (ByteOrder.nativeOrder());
+        for (int i = 0; i < nElements; i++) {
+            int index = (elements[i] < 0) ? restart : elements[i];
+            switch (indexSize) {
+                case 1: b.put ((byte) index); break;
+                case 2: b.putShort ((short) index); break;
+                default: b.putInt (index); break;
+            }
+        }
+        b.flip();
+        switch (indexSize) {
+            case 1: packed = b; break;
+            case 2: packed = b.asShortBuffer(); break;
+            default: packed = b.asIntBuffer(); break;
+        }
+    }
+
+    /**
+     * show or hide one mesh.  Visibility is not synchronized; set it on
+     * the thread that draws the batch.
+     */
+    public void setVisible (int mesh, boolean show)
+    {
+        visible[mesh] = show;
+    }
+
+    public boolean isVisible (int mesh)
+    {
+        return visible[mesh];
+    }
+
+    /**
+     * draw every visible mesh from the bound buffers, in one call
+     *
+     * @return the number of meshes drawn
+     */
+    public int draw (GL2 gl2)
+    {
+        if (packed == null)
+            pack();
+        if (countBuffer == null || countBuffer.capacity() < count) {
+            countBuffer = ByteBuffer.allocateDirect (Math.max (1, count) * 4)
+                                    .order (ByteOrder.nativeOrder()).asIntBuffer();
+            offsetBuffer = PointerBuffer.allocateDirect (Math.max (1, count));
+        }
+
+        countBuffer.clear();
+        offsetBuffer.rewind();
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (!visible[i] || elementCount[i] == 0)
+                continue;
+            countBuffer.put (elementCount[i]);
+            offsetBuffer.put ((long) firstElement[i] * indexSize);
+            n++;
+        }
+        if (n == 0)
+            return 0;
+
+        countBuffer.rewind();
+        offsetBuffer.rewind();
+        gl2.glMultiDrawElements (primitiveType, countBuffer, getElementType(), offsetBuffer, n);
+        return n;
+    }
+
+    /**
+     * triangles in the meshes currently visible
+     */
+    public int getVisibleTriangles()
+    {
+        int shown = 0;
+        for (int i = 0; i < count; i++) {
+            if (visible[i])
+                shown += triangleCount[i];
+        }
+        return shown;
+    }
+
+    /**
+     * number of meshes in the batch
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    public int getFirstElement (int mesh)
+    {
+        return firstElement[mesh];
+    }
+
+    public int getElementCount (int mesh)
+    {
+        return elementCount[mesh];
+    }
+
+    public int getFirstVertex (int mesh)
+    {
+        return firstVertex[mesh];
+    }
+
+    public int getVertexCount (int mesh)
+    {
+        return vertexCount[mesh];
+    }
+
+    public int getTriangleCount (int mesh)
+    {
+        return triangleCount[mesh];
+    }
+
+    public Buffer getVertices()
+    {
+        return FloatBuffer.wrap (points, 0, nVerts * 4).slice();
+    }
+
+    public Buffer getElements()
+    {
+        if (packed == null)
+            pack();
+        return packed;
+    }
+
+    public int getNVerts()
+    {
+        return nVerts;
+    }
+
+    public int getNElements()
+    {
+        return nElements;
+    }
+
+    public int getElementType()
+    {
+        return simpleShape.elementType (getElementSize());
+    }
+
+    public int getElementSize()
+    {
+        if (packed == null)
+            pack();
+        return indexSize;
+    }
+
+    public int getPrimitiveType()
+    {
+        return primitiveType == -1 ? GL.GL_TRIANGLES : primitiveType;
+    }
+
+    public int getRestartIndex()
+    {
+        int size = simpleShape.indexSize (nVerts);
+        return size == 4 ? -1 : (1 << (size * 8)) - 1;
+    }
+
+    public int getNTriangles()
+    {
+        return nTriangles;
+    }
+
+    public long getByteSize()
+    {
+        return 4l * points.length + 4l * elements.length +
+               (packed == null ? 0 : (long) nElements * indexSize);
+    }
+}
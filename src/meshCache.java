@@ -0,0 +1,155 @@
+/**
+ * meshCache.java
+ *
+ * An LRU cache of tessellated shapes, keyed by shape type and division
+ * levels, so that going back to a combination that was built recently
+ * does not tessellate it again.
+ *
+ * Divisions a shape ignores are not part of its key.  The cache is
+ * bounded by the number of bytes the cached shapes hold; the least
+ * recently used shapes are dropped once it is exceeded.
+ */
+
+import java.util.*;
+
+
+public class meshCache
+{
+    /**
+     * cached shapes, in least to most recently used order
+     */
+    private LinkedHashMap<Long, meshData> shapes;
+
+    /**
+     * byte budget and current usage
+     */
+    private long maxBytes;
+    private long bytes;
+
+    /**
+     * statistics
+     */
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * constructor
+     *
+     * @param maxBytes - how many bytes of shape data the cache may hold
+     */
+    public meshCache(long maxBytes)
+    {
+        this.shapes = new LinkedHashMap<Long, meshData>(16, 0.75f, true);
+        this.maxBytes = maxBytes;
+        this.bytes = 0;
+    }
+
+    /**
+     * pack a shape type and its divisions into a key
+     */
+    private static Long key (int shape, int division1, int division2)
+    {
+        division1 = cgShape.usedDivision1 (shape, division1);
+        division2 = cgShape.usedDivision2 (shape, division2);
+        return Long.valueOf (((long) shape << 56) |
+                             ((long) (division1 & 0xfffffff) << 28) |
+                             (division2 & 0xfffffff));
+    }
+
+    /**
+     * look up a shape, counting a hit or a miss
+     *
+     * @return the cached shape, or null if it has not been built
+     */
+    public synchronized meshData get (int shape, int division1, int division2)
+    {
+        meshData s = shapes.get (key (shape, division1, division2));
+        if (s == null)
+            misses++;
+        else
+            hits++;
+        return s;
+    }
+
+    /**
+     * look up a shape without counting a hit or a miss
+     *
+     * @return the cached shape, or null if it has not been built
+     */
+    public synchronized meshData peek (int shape, int division1, int division2)
+    {
+        return shapes.get (key (shape, division1, division2));
+    }
+
+    /**
+     * add a freshly built shape, evicting older shapes to stay in budget.
+     * Cached shapes are shared and must not be modified afterwards.  A
+     * shape bigger than the whole budget is not cached.
+     */
+    public synchronized void put (int shape, int division1, int division2, meshData s)
+    {
+        long size = s.getByteSize();
+        if (size > maxBytes)
+            return;
+
+        meshData old = shapes.put (key (shape, division1, division2), s);
+        if (old != null)
+            bytes -= old.getByteSize();
+        bytes += size;
+
+        Iterator<meshData> it = shapes.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            meshData victim = it.next();
+            it.remove();
+            bytes -= victim.getByteSize();
+            evictions++;
+        }
+    }
+
+    /**
+     * drop every cached shape
+     */
+    public synchronized void clear()
+    {
+        shapes.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public synchronized int size()
+    {
+        return shapes.size();
+    }
+
+    public synchronized String toString()
+    {
+        return "meshCache: " + shapes.size() + " shapes, " + bytes + "/" +
+            maxBytes + " bytes, " + hits + " hits, " + misses + " misses, " +
+            evictions + " evictions";
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * meshData.java
+ *
+ * What the renderer needs from a tessellated mesh: vertex and element
+ * buffers ready for upload, their sizes, and the index type.  Implemented
+ * by simpleShape for meshes built in memory and by meshFile for meshes
+ * mapped from disk.
+ */
+
+import java.nio.*;
+
+
+public interface meshData
+{
+    /**
+     * the vertices, four floats (x, y, z, w) per vertex
+     */
+    Buffer getVertices();
+
+    /**
+     * the elements, three indices per triangle, of getElementType()
+     */
+    Buffer getElements();
+
+    /**
+     * number of vertices in getVertices()
+     */
+    int getNVerts();
+
+    /**
+     * number of indices in getElements()
+     */
+    int getNElements();
+
+    /**
+     * GL type of the indices: GL_UNSIGNED_BYTE, _SHORT or _INT
+     */
+    int getElementType();
+
+    /**
+     * size in bytes of one index
+     */
+    int getElementSize();
+
+    /**
+     * how the elements are drawn: GL_TRIANGLES, or GL_TRIANGLE_STRIP with
+     * strips separated by getRestartIndex()
+     */
+    int getPrimitiveType();
+
+    /**
+     * the primitive restart index for strips: all ones at the index width
+     */
+    int getRestartIndex();
+
+    /**
+     * number of triangles drawn
+     */
+    int getNTriangles();
+
+    /**
+     * number of bytes of memory the mesh holds
+     */
+    long getByteSize();
+}
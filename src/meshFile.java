@@ -0,0 +1,608 @@
+/**
+ * meshFile.java
+ *
+ * A compact binary file format for tessellated meshes, with a writer and a
+ * loader that memory maps the file and hands out views of the mapped
+ * region, so a heavy mesh can be reloaded without tessellating, parsing
+ * or copying it.
+ *
+ * Layout (all little-endian):
+ *
+ *   offset  size  field
+ *        0     4  magic "TESS"
+ *        4     4  format version (1)
+ *        8     4  shape (tessMain.CUBE etc.)
+ *       12     4  division1
+ *       16     4  division2
+ *       20     4  vertex count
+ *       24     4  index count
+ *       28     4  index size in bytes (1, 2 or 4)
+ *       32     4  floats per vertex (4)
+ *       36    24  bounds: min x, y, z, max x, y, z
+ *       60     4  primitive: 0 triangles, 1 strips with primitive restart
+ *       64        vertices, then indices
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import javax.media.opengl.*;
+
+
+public class meshFile implements meshData
+{
+    public static final int MAGIC = 0x53534554;     // "TESS" read little-endian
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    private static final int FLOATS_PER_VERTEX = 4;
+
+    /**
+     * size of the buffers files are written through
+     */
+    private static final int CHUNK = 1 << 16;
+
+    /**
+     * what the mesh is
+     */
+    private int shape;
+    private int division1;
+    private int division2;
+    private float bounds[];
+
+    /**
+     * the mesh data, as views of the mapped file
+     */
+    private int nVerts;
+    private int nElements;
+    private int indexSize;
+    private boolean strips;
+    private int nTriangles = -1;
+    private FloatBuffer vertices;
+    private Buffer elements;
+    private long fileSize;
+    private File file;
+
+    private meshFile()
+    {
+    }
+
+    /**
+     * name used for the file holding a given shape
+     */
+    public static String fileName (int shape, int division1, int division2)
+    {
+        return cgShape.SHAPE_NAMES[shape] + "_" + cgShape.usedDivision1 (shape, division1) + "_" +
+            cgShape.usedDivision2 (shape, division2) + ".mesh";
+    }
+
+    /**
+     * write a mesh to a file.  If writing fails the file is deleted.
+     *
+     * @return the size of the file
+     */
+    public static long write (meshData mesh, int shape, int division1, int division2,
+                              File f) throws IOException
+    {
+        FloatBuffer v = ((FloatBuffer) mesh.getVertices()).duplicate();
+        Buffer e = mesh.getElements();
+        int nVerts = mesh.getNVerts();
+        int nElements = mesh.getNElements();
+        int size = mesh.getElementSize();
+
+        float bounds[] = new float[6];
+        if (nVerts > 0) {
+            bounds[0] = bounds[3] = v.get (0);
+            bounds[1] = bounds[4] = v.get (1);
+            bounds[2] = bounds[5] = v.get (2);
+        }
+        for (int i = 0; i < nVerts; i++) {
+            for (int a = 0; a < 3; a++) {
+                float c = v.get (i * FLOATS_PER_VERTEX + a);
+                bounds[a] = Math.min (bounds[a], c);
+                bounds[a + 3] = Math.max (bounds[a + 3], c);
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocateDirect (CHUNK).order (ByteOrder.LITTLE_ENDIAN);
+        header (buf, shape, division1, division2, nVerts, nElements, size, bounds,
+                mesh.getPrimitiveType() == GL.GL_TRIANGLE_STRIP);
+
+        FileOutputStream out = new FileOutputStream (f);
+        boolean done = false;
+        try {
+            FileChannel ch = out.getChannel();
+
+            for (int i = 0; i < nVerts * FLOATS_PER_VERTEX; i++) {
+                if (buf.remaining() < 4)
+                    drain (ch, buf);
+                buf.putFloat (v.get (i));
+            }
+            for (int i = 0; i < nElements; i++) {
+                if (buf.remaining() < 4)
+                    drain (ch, buf);
+                int idx = index (e, i);
+                switch (size) {
+                    case 1: buf.put ((byte) idx); break;
+                    case 2: buf.putShort ((short) idx); break;
+                    default: buf.putInt (idx); break;
+                }
+            }
+            drain (ch, buf);
+            long written = ch.position();
+            done = true;
+            return written;
+        } finally {
+            out.close();
+            if (!done)
+                f.delete();
+        }
+    }
+
+    /**
+     * put a header into buf
+     */
+    private static void header (ByteBuffer buf, int shape, int division1, int division2,
+                                int nVerts, int nElements, int size, float bounds[],
+                                boolean strips)
+    {
+        buf.putInt (MAGIC).putInt (VERSION).putInt (shape).putInt (cgShape.usedDivision1 (shape, division1))
+           .putInt (cgShape.usedDivision2 (shape, division2))
+           .putInt (nVerts).putInt (nElements).putInt (size).putInt (FLOATS_PER_VERTEX);
+        for (int i = 0; i < 6; i++)
+            buf.putFloat (bounds[i]);
+        buf.putInt (strips ? 1 : 0);
+    }
+
+    /**
+     * A triangleSink that writes a mesh file as the shape is generated,
+     * through buffers of a fixed size, so meshes of any size are written
+     * in bounded memory:
+     *
+     *     meshFile.Writer w = new meshFile.Writer (f, type, d1, d2);
+     *     try {
+     *         shape.makeShape (w, type, d1, d2);
+     *         size = w.commit();
+     *     } finally {
+     *         w.close();
+     *     }
+     *
+     * Vertices go straight into the file behind room left for the header.
+     * Index width depends on the final vertex count, so indices are staged
+     * four bytes each in a temporary file beside it and copied across at
+     * their final width by commit(), which then fills in the header.  A
+     * writer closed without being committed (because generating the shape
+     * failed part way) deletes the file, so no truncated mesh is left to
+     * be loaded as if it were whole.
+     */
+    public static class Writer implements triangleSink, Closeable
+    {
+        private final File file;
+        private final int shape;
+        private final int division1;
+        private final int division2;
+
+        private final RandomAccessFile raf;
+        private final FileChannel ch;
+        private final File indexFile;
+        private final RandomAccessFile indexRaf;
+        private final FileChannel ich;
+        private final ByteBuffer vbuf;
+        private final ByteBuffer ibuf;
+
+        private int nVerts = 0;
+        private int nElements = 0;
+        private float bounds[] = new float[6];
+        private long size = -1;
+        private boolean closed = false;
+
+        public Writer (File f, int shape, int division1, int division2) throws IOException
+        {
+            file = f;
+            this.shape = shape;
+            this.division1 = division1;
+            this.division2 = division2;
+
+            raf = new RandomAccessFile (f, "rw");
+            raf.setLength (0);
+            ch = raf.getChannel();
+            ch.position (HEADER_SIZE);
+
+            indexFile = File.createTempFile ("tess", ".idx", f.getAbsoluteFile().getParentFile());
+            indexRaf = new RandomAccessFile (indexFile, "rw");
+            ich = indexRaf.getChannel();
+
+            vbuf = ByteBuffer.allocateDirect (CHUNK).order (ByteOrder.LITTLE_ENDIAN);
+            ibuf = ByteBuffer.allocateDirect (CHUNK).order (ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public int addVertex (float x, float y, float z)
+        {
+            if (nVerts == 0) {
+                bounds[0] = bounds[3] = x;
+                bounds[1] = bounds[4] = y;
+                bounds[2] = bounds[5] = z;
+            } else {
+                bounds[0] = Math.min (bounds[0], x);
+                bounds[1] = Math.min (bounds[1], y);
+                bounds[2] = Math.min (bounds[2], z);
+                bounds[3] = Math.max (bounds[3], x);
+                bounds[4] = Math.max (bounds[4], y);
+                bounds[5] = Math.max (bounds[5], z);
+            }
+
+            if (vbuf.remaining() < 16)
+                flush (ch, vbuf);
+            vbuf.putFloat (x).putFloat (y).putFloat (z).putFloat (1.0f);
+            return nVerts++;
+        }
+
+        public void addTriangle (int v0, int v1, int v2)
+        {
+            if (ibuf.remaining() < 12)
+                flush (ich, ibuf);
+            ibuf.putInt (v0).putInt (v1).putInt (v2);
+            nElements += 3;
+        }
+
+        private void flush (FileChannel c, ByteBuffer buf)
+        {
+            try {
+                drain (c, buf);
+            } catch (IOException e) {
+                throw new UncheckedIOException (file.toString(), e);
+            }
+        }
+
+        /**
+         * copy the indices into place, write the header and close the file.
+         * If this fails the file is deleted.
+         *
+         * @return the size of the file
+         */
+        public long commit() throws IOException
+        {
+            if (size >= 0)
+                return size;
+            if (closed)
+                throw new IllegalStateException (file + " was closed without being committed");
+
+            boolean done = false;
+            try {
+                drain (ch, vbuf);
+                drain (ich, ibuf);
+
+                // narrow the staged indices, a buffer at a time
+                int width = simpleShape.indexSize (nVerts);
+                long left = nElements * 4l;
+                ich.position (0);
+                while (left > 0) {
+                    ibuf.clear();
+                    ibuf.limit ((int) Math.min (ibuf.capacity(), left));
+                    while (ibuf.hasRemaining()) {
+                        if (ich.read (ibuf) < 0)
+                            throw new EOFException (indexFile.toString());
+                    }
+                    ibuf.flip();
+                    left -= ibuf.remaining();
+
+                    while (ibuf.hasRemaining()) {
+                        if (vbuf.remaining() < 4)
+                            drain (ch, vbuf);
+                        int idx = ibuf.getInt();
+                        switch (width) {
+                            case 1: vbuf.put ((byte) idx); break;
+                            case 2: vbuf.putShort ((short) idx); break;
+                            default: vbuf.putInt (idx); break;
+                        }
+                    }
+                }
+                drain (ch, vbuf);
+                size = ch.position();
+
+                header (vbuf, shape, division1, division2, nVerts, nElements, width,
+                        bounds, false);
+                vbuf.flip();
+                ch.write (vbuf, 0);
+                vbuf.clear();
+                raf.close();
+                done = true;
+            } finally {
+                if (!done)
+                    size = -1;
+                close();
+            }
+            return size;
+        }
+
+        /**
+         * release the files.  Unless commit() succeeded first, the mesh
+         * file is deleted along with the staged indices.
+         */
+        public void close()
+        {
+            if (closed)
+                return;
+            closed = true;
+
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // deleted below if unfinished; a committed file is complete
+            }
+            try {
+                indexRaf.close();
+            } catch (IOException e) {
+                // the staging file is deleted either way
+            }
+            indexFile.delete();
+            if (size < 0)
+                file.delete();
+        }
+
+        public int getNVerts()
+        {
+            return nVerts;
+        }
+
+        public int getNTriangles()
+        {
+            return nElements / 3;
+        }
+    }
+
+    private static void drain (FileChannel ch, ByteBuffer buf) throws IOException
+    {
+        buf.flip();
+        while (buf.hasRemaining())
+            ch.write (buf);
+        buf.clear();
+    }
+
+    /**
+     * map a mesh file.  On little-endian machines the vertex and element
+     * buffers are views straight onto their own mappings (so the file may
+     * be larger than 2 GB as long as neither is); elsewhere they are
+     * copied once into native order.
+     *
+     * The header is checked against the file's length, so any file whose
+     * regions could not be mapped safely is refused with an IOException.
+     * The indices themselves are not read; verify() does that.
+     */
+    public static meshFile map (File f) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile (f, "r");
+        meshFile m = new meshFile();
+        ByteBuffer v, e;
+        try {
+            FileChannel ch = raf.getChannel();
+            m.fileSize = ch.size();
+
+            ByteBuffer head = ByteBuffer.allocate (HEADER_SIZE).order (ByteOrder.LITTLE_ENDIAN);
+            while (head.hasRemaining()) {
+                if (ch.read (head, head.position()) < 0)
+                    break;
+            }
+            if (head.hasRemaining() || head.getInt (0) != MAGIC)
+                throw new IOException (f + " is not a mesh file");
+            if (head.getInt (4) != VERSION)
+                throw new IOException (f + ": unsupported mesh version " + head.getInt (4));
+
+            m.shape = head.getInt (8);
+            m.division1 = head.getInt (12);
+            m.division2 = head.getInt (16);
+            m.nVerts = head.getInt (20);
+            m.nElements = head.getInt (24);
+            m.indexSize = head.getInt (28);
+            int floats = head.getInt (32);
+            m.bounds = new float[6];
+            for (int i = 0; i < 6; i++)
+                m.bounds[i] = head.getFloat (36 + i * 4);
+            int primitive = head.getInt (60);
+            m.strips = (primitive == 1);
+
+            long vertBytes = (long) m.nVerts * FLOATS_PER_VERTEX * 4;
+            long elemBytes = (long) m.nElements * m.indexSize;
+            if (m.shape < 0 || m.shape >= cgShape.SHAPE_NAMES.length ||
+                m.nVerts < 0 || m.nElements < 0 || floats != FLOATS_PER_VERTEX ||
+                (m.indexSize != 1 && m.indexSize != 2 && m.indexSize != 4) ||
+                (primitive != 0 && primitive != 1) ||
+                (!m.strips && m.nElements % 3 != 0))
+                throw new IOException (f + ": corrupt mesh header");
+            if (HEADER_SIZE + vertBytes + elemBytes > m.fileSize)
+                throw new IOException (f + ": truncated, " + m.fileSize + " bytes where the header needs " +
+                                       (HEADER_SIZE + vertBytes + elemBytes));
+            if (vertBytes > Integer.MAX_VALUE || elemBytes > Integer.MAX_VALUE)
+                throw new IOException (f + ": too large to map, " + vertBytes + " bytes of vertices and " +
+                                       elemBytes + " of indices");
+
+            // the mappings stay valid after the channel is closed
+            v = ch.map (FileChannel.MapMode.READ_ONLY, HEADER_SIZE, vertBytes)
+                  .order (ByteOrder.LITTLE_ENDIAN);
+            e = ch.map (FileChannel.MapMode.READ_ONLY, HEADER_SIZE + vertBytes, elemBytes)
+                  .order (ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();
+        }
+
+        if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            v = nativeCopy (v, 4);
+            e = nativeCopy (e, m.indexSize);
+        }
+
+        m.vertices = v.asFloatBuffer();
+        switch (m.indexSize) {
+            case 1: m.elements = e; break;
+            case 2: m.elements = e.asShortBuffer(); break;
+            default: m.elements = e.asIntBuffer(); break;
+        }
+
+        m.file = f;
+        return m;
+    }
+
+    /**
+     * map a mesh file that should hold the given shape, refusing it if its
+     * header says it holds another
+     */
+    public static meshFile map (File f, int shape, int division1, int division2) throws IOException
+    {
+        meshFile m = map (f);
+        division1 = cgShape.usedDivision1 (shape, division1);
+        division2 = cgShape.usedDivision2 (shape, division2);
+        if (m.shape != shape || m.division1 != division1 || m.division2 != division2)
+            throw new IOException (f + " holds " + cgShape.SHAPE_NAMES[m.shape] + ":" +
+                                   m.division1 + ":" + m.division2 + ", not " +
+                                   cgShape.SHAPE_NAMES[shape] + ":" + division1 + ":" +
+                                   division2);
+        return m;
+    }
+
+    /**
+     * check every index against the vertex count (strip restarts aside).
+     * This reads the whole element region, so map() leaves it to callers
+     * that want it, such as tessBatch -v.
+     */
+    public void verify() throws IOException
+    {
+        int restart = strips ? getRestartIndex() : -1;
+        for (int i = 0; i < nElements; i++) {
+            int idx = index (elements, i);
+            if ((idx < 0 || idx >= nVerts) && !(strips && idx == restart))
+                throw new IOException (file + ": index " + (idx & 0xffffffffl) + " at element " + i +
+                                       " is past the " + nVerts + " vertices");
+        }
+    }
+
+    /**
+     * copy little-endian values of the given size into a native-order buffer
+     */
+    private static ByteBuffer nativeCopy (ByteBuffer b, int size)
+    {
+        ByteBuffer c = ByteBuffer.allocateDirect (b.remaining()).order (ByteOrder.nativeOrder());
+        switch (size) {
+            case 1: c.put (b); break;
+            case 2: c.asShortBuffer().put (b.asShortBuffer()); break;
+            default: c.asIntBuffer().put (b.asIntBuffer()); break;
+        }
+        return c;
+    }
+
+    /**
+     * read an index from an element buffer of any width
+     */
+    public static int index (Buffer e, int i)
+    {
+        if (e instanceof ByteBuffer)
+            return ((ByteBuffer) e).get (i) & 0xff;
+        if (e instanceof ShortBuffer)
+            return ((ShortBuffer) e).get (i) & 0xffff;
+        return ((IntBuffer) e).get (i);
+    }
+
+    public Buffer getVertices()
+    {
+        return vertices.duplicate();
+    }
+
+    public Buffer getElements()
+    {
+        if (elements instanceof ByteBuffer)
+            return ((ByteBuffer) elements).duplicate();
+        if (elements instanceof ShortBuffer)
+            return ((ShortBuffer) elements).duplicate();
+        return ((IntBuffer) elements).duplicate();
+    }
+
+    public int getNVerts()
+    {
+        return nVerts;
+    }
+
+    public int getNElements()
+    {
+        return nElements;
+    }
+
+    public int getElementType()
+    {
+        return simpleShape.elementType (indexSize);
+    }
+
+    public int getElementSize()
+    {
+        return indexSize;
+    }
+
+    public int getPrimitiveType()
+    {
+        return strips ? GL.GL_TRIANGLE_STRIP : GL.GL_TRIANGLES;
+    }
+
+    public int getRestartIndex()
+    {
+        switch (indexSize) {
+            case 1: return 0xff;
+            case 2: return 0xffff;
+            default: return 0xffffffff;
+        }
+    }
+
+    /**
+     * number of triangles; for strips this walks the elements the first
+     * time it is asked for
+     */
+    public synchronized int getNTriangles()
+    {
+        if (nTriangles >= 0)
+            return nTriangles;
+        if (!strips)
+            return nTriangles = nElements / 3;
+
+        int restart = getRestartIndex();
+        int n = 0, len = 0, a = -1, b = -1;
+        for (int i = 0; i < nElements; i++) {
+            int v = index (elements, i);
+            if (v == restart) {
+                len = 0;
+                continue;
+            }
+            if (len >= 2 && v != a && v != b && a != b)
+                n++;
+            a = b;
+            b = v;
+            len++;
+        }
+        return nTriangles = n;
+    }
+
+    /**
+     * the mapped file's size; it lives in the page cache, not the heap
+     */
+    public long getByteSize()
+    {
+        return fileSize;
+    }
+
+    public int getShape()
+    {
+        return shape;
+    }
+
+    public int getDivision1()
+    {
+        return division1;
+    }
+
+    public int getDivision2()
+    {
+        return division2;
+    }
+
+    /**
+     * min x, y, z then max x, y, z of the vertices
+     */
+    public float[] getBounds()
+    {
+        return bounds.clone();
+    }
+}
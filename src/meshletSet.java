@@ -0,0 +1,441 @@
+/**
+ * meshletSet.java
+ *
+ * Splits a tessellated triangle mesh into meshlets: runs of consecutive
+ * triangles holding at most MAX_TRIANGLES triangles and MAX_VERTICES
+ * distinct vertices, and ended early where the next triangle would widen
+ * the run's normal cone past MIN_CONE_CUTOFF.  The generators emit
+ * triangles face by face and column by column, so consecutive triangles
+ * lie close together and each meshlet is a small patch of surface; the
+ * cone limit splits them where the surface turns, at cube edges, cylinder
+ * and cone caps and around curved sides, so they stay narrow enough to
+ * be culled.  Because every meshlet is a range of the existing element
+ * buffer the mesh can be drawn by meshlet without being reordered or
+ * uploaded again (which is also why it does not combine with vertex cache
+ * reordering, which scatters neighbouring triangles).
+ *
+ * Each meshlet gets a bounding sphere and a normal cone (the average face
+ * direction and the cosine of the widest angle any face strays from it).
+ * cull() uses them to drop meshlets that are entirely back-facing or
+ * entirely outside the view volume under a given rotation, and collects
+ * the rest as ranges for glMultiDrawElements, merging neighbours into one
+ * range.
+ *
+ * tessMain draws with no projection, so the view direction is the same
+ * for every point and the back-face test needs only the cone, not the
+ * cone's position.
+ */
+
+import java.nio.*;
+import java.util.*;
+import com.jogamp.common.nio.PointerBuffer;
+import javax.media.opengl.*;
+
+
+public class meshletSet
+{
+    /**
+     * meshlet size limits, as commonly used for GPU meshlets
+     */
+    public static final int MAX_VERTICES = 64;
+    public static final int MAX_TRIANGLES = 124;
+
+    /**
+     * a meshlet is ended before a triangle that would widen its normal
+     * cone past this cutoff, the cosine of a half angle of about 37
+     * degrees.  Wider cones are rarely entirely back-facing: a cone of
+     * half angle a is culled from at most (1 - sin a) / 2 of directions.
+     */
+    public static final float MIN_CONE_CUTOFF = 0.8f;
+
+    /**
+     * number of meshlets, and for each its first element and its number
+     * of elements
+     */
+    private int count;
+    private int first[];
+    private int length[];
+
+    /**
+     * bounding spheres (x, y, z, radius) and normal cones (axis x, y, z,
+     * cosine of the half angle), four floats per meshlet
+     */
+    private float spheres[];
+    private float cones[];
+
+    private int elementSize;
+    private int nTriangles;
+
+    /**
+     * draw ranges produced by the last cull(), as element counts and byte
+     * offsets, and the buffers draw() hands them to GL in (made on first
+     * use, as PointerBuffer needs the native GL libraries)
+     */
+    private int drawCounts[];
+    private long drawOffsets[];
+    private int draws;
+    private IntBuffer countBuffer;
+    private PointerBuffer offsetBuffer;
+
+    /**
+     * statistics for the last cull()
+     */
+    private int culledMeshlets;
+    private int culledTriangles;
+
+    /**
+     * split a mesh drawn as GL_TRIANGLES into meshlets
+     */
+    public meshletSet (meshData mesh)
+    {
+        if (mesh.getPrimitiveType() != GL.GL_TRIANGLES)
+            throw new IllegalArgumentException ("meshlets need a triangle list");
+
+        FloatBuffer v = (FloatBuffer) mesh.getVertices();
+        Buffer e = mesh.getElements();
+        int nElements = mesh.getNElements();
+        elementSize = mesh.getElementSize();
+        nTriangles = nElements / 3;
+
+        // at most one meshlet per MAX_TRIANGLES triangles, plus one per
+        // vertex limit hit; grown below if needed
+        int cap = nTriangles / MAX_TRIANGLES + 16;
+        first = new int[cap];
+        length = new int[cap];
+        count = 0;
+
+        // which meshlet each vertex was last counted in
+        int stamp[] = new int[mesh.getNVerts()];
+        Arrays.fill (stamp, -1);
+
+        // the current meshlet's face normals and their sum
+        double normals[] = new double[MAX_TRIANGLES * 3];
+        double sum[] = new double[3];
+        double normal[] = new double[3];
+        int nNormals = 0;
+
+        int start = 0, verts = 0;
+        for (int i = 0; i < nElements; i += 3) {
+            int added = 0;
+            for (int k = 0; k < 3; k++) {
+                if (stamp[meshFile.index (e, i + k)] != count)
+                    added++;
+            }
+            boolean faces = faceNormal (v, e, i, normal);
+
+            int tris = (i - start) / 3;
+            if (tris == MAX_TRIANGLES || verts + added > MAX_VERTICES ||
+                (faces && !coneFits (normals, nNormals, sum, normal))) {
+                close (start, i);
+                start = i;
+                verts = 0;
+                nNormals = 0;
+                sum[0] = sum[1] = sum[2] = 0;
+                added = 0;
+                for (int k = 0; k < 3; k++) {
+                    int p = meshFile.index (e, i + k);
+                    if (stamp[p] != count) {
+                        stamp[p] = count;
+                        added++;
+                    }
+                }
+            }
+
+            for (int k = 0; k < 3; k++)
+                stamp[meshFile.index (e, i + k)] = count;
+            verts += added;
+            if (faces) {
+                for (int k = 0; k < 3; k++) {
+                    normals[nNormals * 3 + k] = normal[k];
+                    sum[k] += normal[k];
+                }
+                nNormals++;
+            }
+        }
+        if (nElements > start)
+            close (start, nElements);
+
+        spheres = new float[count * 4];
+        cones = new float[count * 4];
+        for (int m = 0; m < count; m++)
+            bound (m, v, e);
+
+        drawCounts = new int[count];
+        drawOffsets = new long[count];
+    }
+
+    /**
+     * the unit normal of the triangle at element i
+     *
+     * @return false for a collapsed triangle, which faces nowhere
+     */
+    private static boolean faceNormal (FloatBuffer v, Buffer e, int i, double normal[])
+    {
+        int a = meshFile.index (e, i) * 4;
+        int b = meshFile.index (e, i + 1) * 4;
+        int c = meshFile.index (e, i + 2) * 4;
+        double ux = v.get (b) - v.get (a), uy = v.get (b + 1) - v.get (a + 1),
+               uz = v.get (b + 2) - v.get (a + 2);
+        double wx = v.get (c) - v.get (a), wy = v.get (c + 1) - v.get (a + 1),
+               wz = v.get (c + 2) - v.get (a + 2);
+        double nx = uy * wz - uz * wy, ny = uz * wx - ux * wz, nz = ux * wy - uy * wx;
+        double len = Math.sqrt (nx * nx + ny * ny + nz * nz);
+        if (len == 0)
+            return false;
+        normal[0] = nx / len;
+        normal[1] = ny / len;
+        normal[2] = nz / len;
+        return true;
+    }
+
+    /**
+     * whether n normals with the given sum, and one more, still make a
+     * cone no wider than MIN_CONE_CUTOFF
+     */
+    private static boolean coneFits (double normals[], int n, double sum[], double normal[])
+    {
+        double ax = sum[0] + normal[0], ay = sum[1] + normal[1], az = sum[2] + normal[2];
+        double alen = Math.sqrt (ax * ax + ay * ay + az * az);
+        if (alen < 1e-6)
+            return false;
+        ax /= alen;
+        ay /= alen;
+        az /= alen;
+        if (ax * normal[0] + ay * normal[1] + az * normal[2] < MIN_CONE_CUTOFF)
+            return false;
+        for (int i = 0; i < n; i++) {
+            if (ax * normals[i * 3] + ay * normals[i * 3 + 1] + az * normals[i * 3 + 2] < MIN_CONE_CUTOFF)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * end the current meshlet at element end
+     */
+    private void close (int start, int end)
+    {
+        if (count == first.length) {
+            first = Arrays.copyOf (first, count * 2);
+            length = Arrays.copyOf (length, count * 2);
+        }
+        first[count] = start;
+        length[count] = end - start;
+        count++;
+    }
+
+    /**
+     * compute the bounding sphere and normal cone of meshlet m
+     */
+    private void bound (int m, FloatBuffer v, Buffer e)
+    {
+        int from = first[m], to = first[m] + length[m];
+
+        // sphere: centred on the average corner, out to the farthest one
+        double cx = 0, cy = 0, cz = 0;
+        for (int i = from; i < to; i++) {
+            int p = meshFile.index (e, i) * 4;
+            cx += v.get (p);
+            cy += v.get (p + 1);
+            cz += v.get (p + 2);
+        }
+        cx /= length[m];
+        cy /= length[m];
+        cz /= length[m];
+        double r2 = 0;
+        for (int i = from; i < to; i++) {
+            int p = meshFile.index (e, i) * 4;
+            double dx = v.get (p) - cx, dy = v.get (p + 1) - cy, dz = v.get (p + 2) - cz;
+            r2 = Math.max (r2, dx * dx + dy * dy + dz * dz);
+        }
+        spheres[m * 4] = (float) cx;
+        spheres[m * 4 + 1] = (float) cy;
+        spheres[m * 4 + 2] = (float) cz;
+        spheres[m * 4 + 3] = (float) Math.sqrt (r2);
+
+        // cone: the average unit face normal, and the smallest cosine
+        // between it and any face normal
+        double normals[] = new double[length[m]];
+        double normal[] = new double[3];
+        double ax = 0, ay = 0, az = 0;
+        int n = 0;
+        for (int i = from; i < to; i += 3) {
+            if (!faceNormal (v, e, i, normal))
+                continue;       // a collapsed triangle faces nowhere
+            normals[n * 3] = normal[0];
+            normals[n * 3 + 1] = normal[1];
+            normals[n * 3 + 2] = normal[2];
+            ax += normals[n * 3];
+            ay += normals[n * 3 + 1];
+            az += normals[n * 3 + 2];
+            n++;
+        }
+
+        double alen = Math.sqrt (ax * ax + ay * ay + az * az);
+        double cutoff = -1;     // a cone that can never be culled
+        if (alen > 1e-6) {
+            ax /= alen;
+            ay /= alen;
+            az /= alen;
+            cutoff = 1;
+            for (int i = 0; i < n; i++)
+                cutoff = Math.min (cutoff, ax * normals[i * 3] + ay * normals[i * 3 + 1] +
+                                           az * normals[i * 3 + 2]);
+        }
+        cones[m * 4] = (float) ax;
+        cones[m * 4 + 1] = (float) ay;
+        cones[m * 4 + 2] = (float) az;
+        // widened a little so rounding never culls a visible face
+        cones[m * 4 + 3] = (float) (cutoff - 1e-4);
+    }
+
+    /**
+     * find the meshlets that can be seen under a column-major transform
+     * with no projection (the view looks down z, and faces whose
+     * transformed normal has negative z are back faces) and gather them
+     * into draw ranges
+     *
+     * @return the number of draw ranges
+     */
+    public int cull (float m[])
+    {
+        draws = 0;
+        culledMeshlets = 0;
+        culledTriangles = 0;
+        int runStart = -1, runEnd = -1;
+
+        for (int i = 0; i < count; i++) {
+            if (!visible (i, m)) {
+                culledMeshlets++;
+                culledTriangles += length[i] / 3;
+                continue;
+            }
+
+            // meshlets are consecutive in the element buffer, so a visible
+            // one right after another extends its range
+            if (first[i] != runEnd) {
+                if (runStart >= 0)
+                    addDraw (runStart, runEnd);
+                runStart = first[i];
+            }
+            runEnd = first[i] + length[i];
+        }
+        if (runStart >= 0)
+            addDraw (runStart, runEnd);
+
+        return draws;
+    }
+
+    private void addDraw (int start, int end)
+    {
+        drawCounts[draws] = end - start;
+        drawOffsets[draws] = (long) start * elementSize;
+        draws++;
+    }
+
+    private boolean visible (int i, float m[])
+    {
+        // back-facing: every normal in the cone points away from the
+        // viewer, i.e. the cone axis is more than 90 degrees plus the
+        // cone's half angle from +z
+        float cutoff = cones[i * 4 + 3];
+        if (cutoff > 0) {
+            float ax = cones[i * 4], ay = cones[i * 4 + 1], az = cones[i * 4 + 2];
+            float z = m[2] * ax + m[6] * ay + m[10] * az;
+            if (z < -(float) Math.sqrt (1 - cutoff * cutoff))
+                return false;
+        }
+
+        // outside the view volume: the sphere lies wholly past one of
+        // the faces of the [-1, 1] cube
+        float sx = spheres[i * 4], sy = spheres[i * 4 + 1], sz = spheres[i * 4 + 2];
+        float r = spheres[i * 4 + 3];
+        for (int a = 0; a < 3; a++) {
+            float c = m[a] * sx + m[4 + a] * sy + m[8 + a] * sz + m[12 + a];
+            if (c - r > 1 || c + r < -1)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * draw the ranges found by the last cull() from the bound element
+     * buffer
+     */
+    public void draw (GL2 gl2, int elementType)
+    {
+        if (draws == 0)
+            return;
+        if (countBuffer == null) {
+            countBuffer = ByteBuffer.allocateDirect (count * 4)
+                                    .order (ByteOrder.nativeOrder()).asIntBuffer();
+            offsetBuffer = PointerBuffer.allocateDirect (count);
+        }
+
+        countBuffer.clear();
+        countBuffer.put (drawCounts, 0, draws).rewind();
+        offsetBuffer.rewind();
+        offsetBuffer.put (drawOffsets, 0, draws).rewind();
+        gl2.glMultiDrawElements (GL.GL_TRIANGLES, countBuffer, elementType, offsetBuffer, draws);
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public int getNTriangles()
+    {
+        return nTriangles;
+    }
+
+    public int getFirst (int meshlet)
+    {
+        return first[meshlet];
+    }
+
+    public int getLength (int meshlet)
+    {
+        return length[meshlet];
+    }
+
+    /**
+     * the meshlet's bounding sphere as x, y, z, radius
+     */
+    public float[] getSphere (int meshlet)
+    {
+        return Arrays.copyOfRange (spheres, meshlet * 4, meshlet * 4 + 4);
+    }
+
+    /**
+     * the meshlet's normal cone as axis x, y, z and the cosine of its half
+     * angle (-1 if the faces point every which way)
+     */
+    public float[] getCone (int meshlet)
+    {
+        return Arrays.copyOfRange (cones, meshlet * 4, meshlet * 4 + 4);
+    }
+
+    public int getDraws()
+    {
+        return draws;
+    }
+
+    public int getCulledMeshlets()
+    {
+        return culledMeshlets;
+    }
+
+    public int getCulledTriangles()
+    {
+        return culledTriangles;
+    }
+
+    /**
+     * percentage of the triangles dropped by the last cull()
+     */
+    public float getCulledPercent()
+    {
+        return nTriangles == 0 ? 0 : 100.0f * culledTriangles / nTriangles;
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * renderBench.java
+ *
+ * Sustained render throughput.  Draws tessMain continuously into an
+ * offscreen drawable with an Animator running as fast as it can, vsync
+ * off, the shape turning a little every frame.  For each configuration
+ * it waits for the shape to be built and uploaded, lets warmup frames
+ * go by, then times frames for a while and writes one CSV line:
+ *
+ *     shape,division1,division2,triangles,frames,seconds,fps,
+ *     frame_p50_ms,frame_p95_ms,frame_p99_ms,gpu_p50_ms
+ *
+ * where triangles is the number drawn per frame (after any instancing or
+ * meshlet culling).  A configuration that cannot be built, or is not on
+ * screen within the timeout, is reported on standard error and skipped.
+ *
+ * Each frame ends with glFinish(), so frame times cover the rendering
+ * itself and not just queueing it.  gpu_p50_ms is the draw call time from
+ * tessMain's timer queries, empty if the driver has none.
+ *
+ * usage: java renderBench [-o file.csv] [-s seconds] [-w frames] [-t seconds]
+ *                         [-size WxH] [shape:division1[:division2]...]
+ *
+ *   -o file     write the CSV there instead of to standard output
+ *   -s seconds  time spent measuring each configuration (default 3)
+ *   -w frames   frames drawn before measuring (default 30)
+ *   -t seconds  time allowed for each shape to be built (default 60)
+ *   -size WxH   size of the offscreen drawable (default 512x512)
+ *
+ * With no configurations a sweep over every shape at three division
+ * levels is run.  tessMain's -Dtess.* settings apply as usual.
+ *
+ * On a machine with no GPU, run it on Mesa's software renderer, with a
+ * virtual X server for JOGL to open its context on:
+ *
+ *     LIBGL_ALWAYS_SOFTWARE=1 xvfb-run -s "-screen 0 1024x768x24" \
+ *         java renderBench -o render.csv
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.media.opengl.*;
+import com.jogamp.opengl.util.Animator;
+
+
+public class renderBench implements GLEventListener
+{
+    /**
+     * the sweep run when no configurations are given
+     */
+    private static final String SWEEP[] = {
+        "cube:4", "cube:16", "cube:64",
+        "cylinder:16:4", "cylinder:64:16", "cylinder:256:64",
+        "cone:16:4", "cone:64:16", "cone:256:64",
+        "sphere:2", "sphere:4", "sphere:6"
+    };
+
+    /**
+     * degrees the shape turns about each axis per frame
+     */
+    private static final float SPIN[] = { 0.7f, 1.1f, 0.3f };
+
+    private final tessMain main;
+    private final List<int[]> configs;
+    private final long measureNanos;
+    private final int warmupFrames;
+    private final long timeoutNanos;
+    private final PrintStream csv;
+    private final CountDownLatch done = new CountDownLatch (1);
+
+    /**
+     * where we are: the configuration being run, frames drawn since it
+     * settled, when measuring started and the frame times so far
+     */
+    private int current = -1;
+    private long configStart;
+    private int failuresBefore;
+    private volatile long lastDisplay;
+    private int settledFrames;
+    private long measureStart;
+    private long lastFrame;
+    private long times[] = new long[1024];
+    private int nTimes;
+
+    public renderBench (tessMain main, List<int[]> configs, long measureNanos,
+                        int warmupFrames, long timeoutNanos, PrintStream csv)
+    {
+        this.main = main;
+        this.configs = configs;
+        this.measureNanos = measureNanos;
+        this.warmupFrames = warmupFrames;
+        this.timeoutNanos = timeoutNanos;
+        this.csv = csv;
+    }
+
+    public void init (GLAutoDrawable drawable)
+    {
+        // vsync off, so the frame rate is the renderer's
+        drawable.getGL().setSwapInterval (0);
+        csv.println ("shape,division1,division2,triangles,frames,seconds,fps," +
+                     "frame_p50_ms,frame_p95_ms,frame_p99_ms,gpu_p50_ms");
+        next();
+    }
+
+    /**
+     * called after tessMain has drawn each frame
+     */
+    public void display (GLAutoDrawable drawable)
+    {
+        if (current >= configs.size())
+            return;
+
+        drawable.getGL().glFinish();
+        long now = System.nanoTime();
+        lastDisplay = now;
+
+        main.angles[0] += SPIN[0];
+        main.angles[1] += SPIN[1];
+        main.angles[2] += SPIN[2];
+
+        // wait until the shape asked for is on screen, then warm up
+        if (settledFrames == 0) {
+            if (main.getBuildFailures() != failuresBefore) {
+                skip ("it could not be built");
+                return;
+            }
+            if (now - configStart > timeoutNanos) {
+                skip ("it was not ready after " + timeoutNanos / 1000000000l + " s");
+                return;
+            }
+            if (!main.isSettled())
+                return;
+        }
+        settledFrames++;
+        if (settledFrames <= warmupFrames) {
+            lastFrame = now;
+            if (settledFrames == warmupFrames) {
+                measureStart = now;
+                main.myMetrics.reset();
+            }
+            return;
+        }
+
+        if (nTimes == times.length)
+            times = Arrays.copyOf (times, nTimes * 2);
+        times[nTimes++] = now - lastFrame;
+        lastFrame = now;
+
+        if (now - measureStart >= measureNanos) {
+            report (now - measureStart);
+            next();
+        }
+    }
+
+    /**
+     * move on to the next configuration, or finish
+     */
+    private void next()
+    {
+        current++;
+        settledFrames = 0;
+        nTimes = 0;
+        configStart = System.nanoTime();
+        failuresBefore = main.getBuildFailures();
+        if (current < configs.size()) {
+            int c[] = configs.get (current);
+            main.setShape (c[0], c[1], c[2]);
+        } else {
+            csv.flush();
+            done.countDown();
+        }
+    }
+
+    private void skip (String why)
+    {
+        int c[] = configs.get (current);
+        System.err.println ("renderBench: skipping " + cgShape.SHAPE_NAMES[c[0]] + ":" +
+                            c[1] + ":" + c[2] + ", " + why);
+        next();
+    }
+
+    private void report (long elapsed)
+    {
+        int c[] = configs.get (current);
+        long sorted[] = Arrays.copyOf (times, nTimes);
+        Arrays.sort (sorted);
+        double seconds = elapsed / 1e9;
+        double gpu = main.myMetrics.getGpuDrawP50();
+
+        csv.println (cgShape.SHAPE_NAMES[c[0]] + "," + c[1] + "," + c[2] + "," +
+                     main.myMetrics.getTrianglesDrawn() + "," + nTimes + "," +
+                     String.format ("%.3f,%.1f,%.3f,%.3f,%.3f,", seconds, nTimes / seconds,
+                                    percentile (sorted, 50), percentile (sorted, 95),
+                                    percentile (sorted, 99)) +
+                     (Double.isNaN (gpu) ? "" : String.format ("%.3f", gpu)));
+        csv.flush();
+    }
+
+    /**
+     * the pth percentile of sorted nanosecond times, in milliseconds
+     */
+    private static double percentile (long sorted[], double p)
+    {
+        if (sorted.length == 0)
+            return Double.NaN;
+        int i = (int) Math.ceil (p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max (0, Math.min (sorted.length - 1, i))] / 1e6;
+    }
+
+    public void reshape (GLAutoDrawable drawable, int x, int y, int width, int height)
+    {
+    }
+
+    public void dispose (GLAutoDrawable drawable)
+    {
+    }
+
+    /**
+     * wait for every configuration to be run
+     *
+     * @return false if frames stopped coming (the animator died) before
+     *         then
+     */
+    public boolean await() throws InterruptedException
+    {
+        lastDisplay = System.nanoTime();
+        while (!done.await (1, TimeUnit.SECONDS)) {
+            if (System.nanoTime() - lastDisplay > timeoutNanos)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * parse shape:division1[:division2]
+     */
+    private static int[] parseConfig (String spec)
+    {
+        String parts[] = spec.split (":");
+        if (parts.length < 2 || parts.length > 3)
+            throw new IllegalArgumentException ("bad configuration " + spec +
+                                                ", expected shape:division1[:division2]");
+        int shape = Arrays.asList (cgShape.SHAPE_NAMES).indexOf (parts[0].toLowerCase());
+        if (shape < 0)
+            throw new IllegalArgumentException ("unknown shape " + parts[0]);
+        return new int[] { shape, Integer.parseInt (parts[1]),
+                           parts.length > 2 ? Integer.parseInt (parts[2]) : 3 };
+    }
+
+    private static void usage()
+    {
+        System.err.println ("usage: java renderBench [-o file.csv] [-s seconds] [-w frames] [-t seconds] [-size WxH] [shape:division1[:division2]...]");
+        System.err.println ("       shapes: cube, cylinder, cone, sphere");
+        System.exit (2);
+    }
+
+    /**
+     * main program
+     */
+    public static void main (String args[]) throws Exception
+    {
+        PrintStream csv = System.out;
+        double seconds = 3;
+        int warmup = 30;
+        double timeout = 60;
+        int width = 512, height = 512;
+        List<int[]> configs = new ArrayList<int[]>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals ("-o") && i + 1 < args.length)
+                    csv = new PrintStream (new FileOutputStream (args[++i]), false, "UTF-8");
+                else if (args[i].equals ("-s") && i + 1 < args.length)
+                    seconds = Double.parseDouble (args[++i]);
+                else if (args[i].equals ("-w") && i + 1 < args.length)
+                    warmup = Math.max (1, Integer.parseInt (args[++i]));
+                else if (args[i].equals ("-t") && i + 1 < args.length)
+                    timeout = Double.parseDouble (args[++i]);
+                else if (args[i].equals ("-size") && i + 1 < args.length) {
+                    String wh[] = args[++i].split ("x");
+                    if (wh.length != 2)
+                        usage();
+                    width = Integer.parseInt (wh[0]);
+                    height = Integer.parseInt (wh[1]);
+                }
+                else if (args[i].startsWith ("-"))
+                    usage();
+                else
+                    configs.add (parseConfig (args[i]));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println (e.getMessage());
+            usage();
+        }
+        if (configs.isEmpty()) {
+            for (String spec : SWEEP)
+                configs.add (parseConfig (spec));
+        }
+
+        // an offscreen drawable, so no window or screen is needed
+        GLProfile glp = GLProfile.getDefault();
+        GLCapabilities caps = new GLCapabilities (glp);
+        caps.setOnscreen (false);
+        caps.setDoubleBuffered (false);
+        GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory (glp)
+            .createOffscreenAutoDrawable (null, caps, null, width, height, null);
+
+        tessMain main = new tessMain (drawable);
+        renderBench bench = new renderBench (main, configs, (long) (seconds * 1e9), warmup,
+                                             (long) (timeout * 1e9), csv);
+        drawable.addGLEventListener (bench);
+
+        Animator animator = new Animator (drawable);
+        animator.setRunAsFastAsPossible (true);
+        animator.start();
+        boolean finished = bench.await();
+        if (!finished) {
+            System.err.println ("renderBench: no frames drawn for " + timeout + " s, giving up");
+            csv.flush();
+            System.exit (1);
+        }
+        animator.stop();
+        drawable.destroy();
+
+        if (csv != System.out)
+            csv.close();
+        System.exit (0);
+    }
+}
@@ -5,6 +5,19 @@
  *
  * Based on the C++ shaderSetup.cpp implementation, with modifications
  * mandated by the use of JOGL.
+ *
+ * Linked programs are kept so that asking again for the same sources in
+ * the same context returns the existing program.  With setBinaryCache()
+ * they are also saved with glGetProgramBinary, keyed by a hash of both
+ * sources and the driver's vendor, renderer and version strings, and
+ * later loaded with glProgramBinary instead of being compiled.  A binary
+ * the driver rejects (after a driver update, say) is deleted and the
+ * sources compiled as usual.
+ *
+ * Binaries go straight to the driver, so the cache directory must belong
+ * to the current user and be writable by no one else (where the file
+ * system has POSIX permissions); otherwise it is not used.  It is created
+ * readable by its owner only.
  */
 
 import java.awt.*;
@@ -12,6 +25,13 @@ import java.awt.event.*;
 import javax.media.opengl.*;
 import javax.media.opengl.awt.GLCanvas;
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.HashMap;
+import java.util.Set;
 
 
 public class shaderSetup
@@ -30,6 +50,24 @@ public class shaderSetup
      */
     public ErrorCode shaderErrorCode;
 
+    /**
+     * directory of saved program binaries; null when not caching
+     */
+    private File binaryDir;
+
+    /**
+     * programs linked in linkedContext, by source and driver hash
+     */
+    private final HashMap<String,Integer> linked = new HashMap<String,Integer>();
+    private GLContext linkedContext;
+
+    /**
+     * how programs were obtained: compiled, loaded as binaries, or reused
+     */
+    private int compiles;
+    private int binaryLoads;
+    private int reuses;
+
     /**
      * constructor
      */
@@ -65,22 +103,236 @@ public class shaderSetup
     }
 
     /**
-     * reads in text from a file and returns as a string.
+     * save and load program binaries in the given directory, or stop
+     * doing so if it is null
+     */
+    public void setBinaryCache (File dir)
+    {
+        binaryDir = dir;
+    }
+
+    public int getCompiles()
+    {
+        return compiles;
+    }
+
+    public int getBinaryLoads()
+    {
+        return binaryLoads;
+    }
+
+    public int getReuses()
+    {
+        return reuses;
+    }
+
+    /**
+     * reads in text from a file, or if there is no such file from the
+     * classpath resource of that name, and returns it as a string.
      */
     private String textFileRead (String filePath) throws IOException
     {
-        StringBuffer fileData = new StringBuffer(1000);
-        BufferedReader reader = new BufferedReader(
-                                                   new FileReader(filePath));
-        char[] buf = new char[1024];
-        int numRead=0;
-        while((numRead=reader.read(buf)) != -1){
-            String readData = String.valueOf(buf, 0, numRead);
-            fileData.append(readData);
-            buf = new char[1024];
+        Path path = Paths.get (filePath);
+        if (Files.isRegularFile (path))
+            return new String (Files.readAllBytes (path), StandardCharsets.UTF_8);
+
+        InputStream in = shaderSetup.class.getClassLoader().getResourceAsStream (filePath);
+        if (in == null)
+            throw new FileNotFoundException (filePath);
+        try {
+            return new String (in.readAllBytes(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * the key a program is cached under: a hash of its sources and of the
+     * driver that will run it
+     */
+    private static String programKey (GL2 gl2, String vs, String fs)
+    {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance ("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException (e);
+        }
+        String parts[] = { vs, fs, gl2.glGetString (GL.GL_VENDOR),
+                           gl2.glGetString (GL.GL_RENDERER), gl2.glGetString (GL.GL_VERSION) };
+        for (String part : parts) {
+            md.update (String.valueOf (part).getBytes (StandardCharsets.UTF_8));
+            md.update ((byte) 0);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest())
+            hex.append (String.format ("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * the binary cache directory, created if need be, or null if there is
+     * none or it cannot be trusted (in which case caching is turned off)
+     */
+    private Path cacheDir()
+    {
+        if (binaryDir == null)
+            return null;
+
+        Path dir = binaryDir.toPath();
+        String why;
+        try {
+            if (!Files.exists (dir, LinkOption.NOFOLLOW_LINKS)) {
+                if (dir.getFileSystem().supportedFileAttributeViews().contains ("posix"))
+                    Files.createDirectories (dir, PosixFilePermissions.asFileAttribute (
+                                                      PosixFilePermissions.fromString ("rwx------")));
+                else
+                    Files.createDirectories (dir);
+            }
+            why = untrusted (dir);
+        } catch (IOException e) {
+            why = e.toString();
+        }
+        if (why == null)
+            return dir;
+
+        System.err.println ("Not caching shader programs in " + dir + ": " + why);
+        binaryDir = null;
+        return null;
+    }
+
+    /**
+     * why a cache directory cannot be trusted, or null if it can
+     */
+    private static String untrusted (Path dir) throws IOException
+    {
+        if (!Files.isDirectory (dir, LinkOption.NOFOLLOW_LINKS))
+            return "not a plain directory";
+
+        UserPrincipal me = dir.getFileSystem().getUserPrincipalLookupService()
+                              .lookupPrincipalByName (System.getProperty ("user.name"));
+        UserPrincipal owner = Files.getOwner (dir, LinkOption.NOFOLLOW_LINKS);
+        if (!owner.equals (me))
+            return "owned by " + owner.getName() + ", not " + me.getName();
+
+        PosixFileAttributeView posix = Files.getFileAttributeView (
+            dir, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (posix != null) {
+            Set<PosixFilePermission> perms = posix.readAttributes().permissions();
+            if (perms.contains (PosixFilePermission.GROUP_WRITE) ||
+                perms.contains (PosixFilePermission.OTHERS_WRITE))
+                return "writable by other users";
+        }
+        return null;
+    }
+
+    /**
+     * true if the driver can hand out program binaries at all
+     */
+    private boolean binariesSupported (GL2 gl2)
+    {
+        if (cacheDir() == null)
+            return false;
+        int formats[] = new int[1];
+        gl2.glGetIntegerv (GL2ES2.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        return formats[0] > 0;
+    }
+
+    /**
+     * load a saved program binary
+     *
+     * @return the program, or 0 if there is none or the driver rejects it
+     */
+    private int loadBinary (GL2 gl2, String key)
+    {
+        Path dir = cacheDir();
+        if (dir == null)
+            return 0;
+        Path file = dir.resolve (key + ".bin");
+        byte data[];
+        try {
+            data = Files.readAllBytes (file);
+        } catch (IOException e) {
+            return 0;
+        }
+
+        // the binary format, then the binary
+        ByteBuffer buf = ByteBuffer.allocateDirect (data.length).order (ByteOrder.nativeOrder());
+        buf.put (data).flip();
+        int program = 0;
+        if (data.length > 4) {
+            int format = buf.getInt();
+            ByteBuffer binary = buf.slice();
+            program = gl2.glCreateProgram();
+            gl2.glProgramBinary (program, format, binary, binary.remaining());
+
+            int status[] = new int[1];
+            gl2.glGetProgramiv (program, GL2.GL_LINK_STATUS, status, 0);
+            if (status[0] != GL2.GL_FALSE)
+                return program;
+        }
+
+        // stale or damaged: drop it, and the error a rejected format
+        // raises, and compile instead
+        if (program != 0)
+            gl2.glDeleteProgram (program);
+        gl2.glGetError();
+        try {
+            Files.deleteIfExists (file);
+        } catch (IOException e) {
+            // it will be replaced once the program is compiled
+        }
+        return 0;
+    }
+
+    /**
+     * save a linked program's binary.  Failing to is not an error; the
+     * program is just compiled again next time.
+     */
+    private void saveBinary (GL2 gl2, int program, String key)
+    {
+        int length[] = new int[1];
+        gl2.glGetProgramiv (program, GL2ES2.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0)
+            return;
+
+        ByteBuffer binary = ByteBuffer.allocateDirect (length[0]);
+        int written[] = new int[1];
+        int format[] = new int[1];
+        gl2.glGetProgramBinary (program, length[0], written, 0, format, 0, binary);
+        if (written[0] <= 0)
+            return;
+
+        byte data[] = new byte[4 + written[0]];
+        ByteBuffer out = ByteBuffer.wrap (data).order (ByteOrder.nativeOrder());
+        out.putInt (format[0]);
+        binary.limit (written[0]);
+        out.put (binary);
+
+        // written whole and then renamed, so a reader never sees half
+        Path tmp = null;
+        try {
+            Path dir = cacheDir();
+            if (dir == null)
+                return;
+            tmp = Files.createTempFile (dir, key, ".tmp");
+            Files.write (tmp, data);
+            try {
+                Files.move (tmp, dir.resolve (key + ".bin"), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move (tmp, dir.resolve (key + ".bin"), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println ("Cannot cache shader program: " + e.getMessage());
+            try {
+                if (tmp != null)
+                    Files.deleteIfExists (tmp);
+            } catch (IOException e2) {
+                // left for the next successful save to ignore
+            }
         }
-        reader.close();
-        return fileData.toString();
     }
     
     public void printShaderInfoLog(GL2 gl2, int obj)
@@ -128,10 +380,6 @@ public class shaderSetup
         // assume that everything will work
         shaderErrorCode = ErrorCode.E_NO_ERROR;
         
-        // create the shader
-        int the_vert = gl2.glCreateShader (GL2ES2.GL_VERTEX_SHADER);
-        int the_frag = gl2.glCreateShader (GL2ES2.GL_FRAGMENT_SHADER);
-        
         // read in shader source
         try {
             vs = textFileRead (vert);
@@ -149,7 +397,48 @@ public class shaderSetup
             System.err.println (errorString(shaderErrorCode) + vert);
             return 0;
         }
-        
+
+        // programs only live as long as their context
+        if (gl2.getContext() != linkedContext) {
+            linked.clear();
+            linkedContext = gl2.getContext();
+        }
+
+        // already linked, or saved from an earlier run
+        String key = programKey (gl2, vs, fs);
+        Integer known = linked.get (key);
+        if (known != null) {
+            reuses++;
+            return known;
+        }
+        boolean binaries = binariesSupported (gl2);
+        int the_program = binaries ? loadBinary (gl2, key) : 0;
+        if (the_program != 0) {
+            binaryLoads++;
+            linked.put (key, the_program);
+            return the_program;
+        }
+
+        the_program = compileAndLink (gl2, vs, fs, binaries);
+        if (the_program == 0)
+            return 0;
+        compiles++;
+        if (binaries)
+            saveBinary (gl2, the_program, key);
+        linked.put (key, the_program);
+        return the_program;
+    }
+
+    /**
+     * compile and link a program from source
+     *
+     * @return the program, or 0 with shaderErrorCode set
+     */
+    private int compileAndLink (GL2 gl2, String vs, String fs, boolean retrievable)
+    {
+        // create the shader
+        int the_vert = gl2.glCreateShader (GL2ES2.GL_VERTEX_SHADER);
+        int the_frag = gl2.glCreateShader (GL2ES2.GL_FRAGMENT_SHADER);
         
         // fill in the shader source
         String source[] = new String[1];
@@ -185,6 +474,11 @@ public class shaderSetup
         gl2.glAttachShader(the_program, the_vert);
         gl2.glAttachShader(the_program, the_frag);
         printProgramInfoLog(gl2, the_program);
+
+        // some drivers only keep a binary around if asked before linking
+        if (retrievable && gl2.isGL4ES3())
+            gl2.getGL4ES3().glProgramParameteri (the_program,
+                    GL4ES3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL.GL_TRUE);
         
         // Link the program
         gl2.glLinkProgram(the_program);
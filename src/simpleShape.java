@@ -20,27 +20,508 @@ import javax.media.opengl.awt.GLCanvas;
 import java.util.*;
 
 
-public class simpleShape
+public class simpleShape implements meshData, triangleSink
 {
     /**
-     * our vertex points
+     * initial number of triangles we make room for
      */
-    private Vector<Float> points;
+    private static final int DEFAULT_TRIANGLES = 64;
 
     /**
-     * our array elements
+     * positions closer than this are welded into one vertex
      */
-    private Vector<Short> elements;
-    private short nVerts;
+    private static final float WELD_EPSILON = 1.0e-5f;
+    private static final float WELD_SCALE = 1.0f / WELD_EPSILON;
+
+    /**
+     * our vertex points (x, y, z, w per vertex)
+     */
+    private float points[];
+    private int nPoints;
+
+    /**
+     * our array elements.  Indices are stored at the narrowest width
+     * (1, 2 or 4 bytes) that can address every vertex; only the array
+     * matching indexSize is in use.
+     */
+    private int indexSize;
+    private byte elements8[];
+    private short elements16[];
+    private int elements32[];
+    private int nElements;
+    private int nVerts;
+
+    /**
+     * native-order direct storage, used instead of the arrays above when
+     * the shape is in direct mode so that uploads need no extra copy
+     */
+    private boolean direct;
+    private FloatBuffer directPoints;
+    private ByteBuffer directElements;
+
+    /**
+     * welding info.  weldTable is an open addressed hash from quantized
+     * position to vertex index; empty slots hold -1.
+     */
+    private boolean welding;
+    private int weldTable[];
+
+    /**
+     * strip info.  In strip mode the elements are triangle strips separated
+     * by the primitive restart index; stripLength counts the indices of the
+     * strip being added and stripA/stripB hold its last two.
+     */
+    private boolean strips;
+    private int stripLength;
+    private int stripA;
+    private int stripB;
+    private int nTriangles;
 
     /**
      * constructor
      */
     public simpleShape()
     {
-        points = new Vector<Float>();
-        elements = new Vector<Short>();
+        this (DEFAULT_TRIANGLES);
+    }
+
+    /**
+     * constructor
+     *
+     * @param triangleHint - number of triangles to make room for up front
+     */
+    public simpleShape(int triangleHint)
+    {
+        points = new float[Math.max (1, triangleHint) * 12];
+        indexSize = 1;
+        elements8 = new byte[Math.max (1, triangleHint) * 3];
+        nPoints = 0;
+        nElements = 0;
         nVerts = 0;
+        nTriangles = 0;
+        direct = false;
+        welding = false;
+        strips = false;
+    }
+
+    /**
+     * switch between heap array storage and native-order direct buffer
+     * storage.  Any triangles already added are carried over.
+     */
+    public void setDirect (boolean useDirect)
+    {
+        if (useDirect == direct)
+            return;
+
+        if (useDirect) {
+            directPoints = newFloats (points.length);
+            directPoints.put (points, 0, nPoints);
+            points = null;
+        } else {
+            points = new float[directPoints.capacity()];
+            directPoints.position (0);
+            directPoints.get (points, 0, nPoints);
+            directPoints = null;
+        }
+        reallocElements (indexSize, useDirect, elementCapacity());
+    }
+
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    /**
+     * turn vertex welding on or off.  While welding, addTriangle() reuses
+     * an existing vertex whenever one already sits at (nearly) the same
+     * position, so shared corners are stored once and referenced by index.
+     * Should be set before any triangles are added.
+     */
+    public void setWelding (boolean weld)
+    {
+        welding = weld;
+        weldTable = null;
+        if (weld) {
+            rebuildWeldTable (Math.max (16, nVerts * 2));
+        }
+    }
+
+    public boolean isWelding()
+    {
+        return welding;
+    }
+
+    /**
+     * turn strip mode on or off.  In strip mode the elements are drawn as
+     * GL_TRIANGLE_STRIP with primitive restart: generators add strips
+     * through beginStrip()/addStripIndex(), and any single triangle becomes
+     * a three index strip of its own.  Must be set while the shape is empty.
+     */
+    public void setStrips (boolean useStrips)
+    {
+        if (nElements != 0)
+            throw new IllegalStateException ("strip mode must be set on an empty shape");
+        strips = useStrips;
+    }
+
+    public boolean isStrips()
+    {
+        return strips;
+    }
+
+    private static FloatBuffer newFloats (int n)
+    {
+        return ByteBuffer.allocateDirect (n * 4).order (ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static ByteBuffer newBytes (int n)
+    {
+        return ByteBuffer.allocateDirect (n).order (ByteOrder.nativeOrder());
+    }
+
+    /**
+     * make sure there is room for at least the given number of additional
+     * triangles without further growth
+     */
+    public void ensureCapacity (int triangles)
+    {
+        growPoints (nPoints + triangles * 12);
+        growElements (nElements + triangles * 3);
+    }
+
+    /**
+     * make sure there is room for at least the given number of additional
+     * vertices and triangles, for callers that share vertices
+     */
+    public void ensureCapacity (int vertices, int triangles)
+    {
+        growPoints (nPoints + vertices * 4);
+        growElements (nElements + triangles * 3);
+    }
+
+    /**
+     * grow the point storage, doubling so that growth is amortized
+     */
+    private void growPoints (int needed)
+    {
+        if (direct) {
+            if (needed > directPoints.capacity()) {
+                FloatBuffer old = directPoints;
+                directPoints = newFloats (Math.max (needed, old.capacity() * 2));
+                old.position (0).limit (nPoints);
+                directPoints.put (old);
+            }
+        } else if (needed > points.length) {
+            points = Arrays.copyOf (points, Math.max (needed, points.length * 2));
+        }
+    }
+
+    /**
+     * grow the element storage, doubling so that growth is amortized
+     */
+    private void growElements (int needed)
+    {
+        int cap = elementCapacity();
+        if (needed > cap) {
+            reallocElements (indexSize, direct, Math.max (needed, cap * 2));
+        }
+    }
+
+    /**
+     * number of indices the element storage can hold
+     */
+    private int elementCapacity()
+    {
+        if (direct)
+            return directElements.capacity() / indexSize;
+
+        switch (indexSize) {
+            case 1: return elements8.length;
+            case 2: return elements16.length;
+            default: return elements32.length;
+        }
+    }
+
+    /**
+     * largest vertex index usable at the given index width; the value above
+     * it is kept for the primitive restart index
+     */
+    private static int maxIndex (int size)
+    {
+        switch (size) {
+            case 1: return 0xfe;
+            case 2: return 0xfffe;
+            default: return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * the narrowest index width, in bytes, that can address nVerts
+     * vertices
+     */
+    public static int indexSize (int nVerts)
+    {
+        if (nVerts - 1 <= maxIndex (1))
+            return 1;
+        return (nVerts - 1 <= maxIndex (2)) ? 2 : 4;
+    }
+
+    /**
+     * the GL type of indices of the given width
+     */
+    public static int elementType (int size)
+    {
+        switch (size) {
+            case 1: return GL.GL_UNSIGNED_BYTE;
+            case 2: return GL.GL_UNSIGNED_SHORT;
+            default: return GL.GL_UNSIGNED_INT;
+        }
+    }
+
+    /**
+     * the primitive restart index at the given index width (all ones)
+     */
+    private static int restartIndex (int size)
+    {
+        switch (size) {
+            case 1: return 0xff;
+            case 2: return 0xffff;
+            default: return 0xffffffff;
+        }
+    }
+
+    /**
+     * move the element storage to the given index width, storage mode and
+     * capacity, keeping the indices already stored.
+     */
+    private void reallocElements (int size, boolean toDirect, int capacity)
+    {
+        if (size == indexSize && toDirect == direct) {
+            if (direct) {
+                ByteBuffer old = directElements;
+                directElements = newBytes (capacity * size);
+                old.position (0).limit (nElements * size);
+                directElements.put (old);
+            } else {
+                switch (size) {
+                    case 1: elements8 = Arrays.copyOf (elements8, capacity); break;
+                    case 2: elements16 = Arrays.copyOf (elements16, capacity); break;
+                    default: elements32 = Arrays.copyOf (elements32, capacity); break;
+                }
+            }
+            return;
+        }
+
+        // change of width or mode; rare, so go through a plain copy
+        int oldSize = indexSize;
+        int old[] = new int[nElements];
+        for (int i = 0; i < nElements; i++)
+            old[i] = getElement (i);
+
+        elements8 = null;
+        elements16 = null;
+        elements32 = null;
+        directElements = null;
+        indexSize = size;
+        direct = toDirect;
+
+        if (direct) {
+            directElements = newBytes (capacity * size);
+        } else {
+            switch (size) {
+                case 1: elements8 = new byte[capacity]; break;
+                case 2: elements16 = new short[capacity]; break;
+                default: elements32 = new int[capacity]; break;
+            }
+        }
+
+        // restart markers follow the index width
+        int oldRestart = restartIndex (oldSize);
+        for (int i = 0; i < old.length; i++)
+            putElement (i, (strips && old[i] == oldRestart) ? restartIndex (size) : old[i]);
+    }
+
+    private int getElement (int i)
+    {
+        if (direct) {
+            switch (indexSize) {
+                case 1: return directElements.get (i) & 0xff;
+                case 2: return directElements.getShort (i * 2) & 0xffff;
+                default: return directElements.getInt (i * 4);
+            }
+        }
+        switch (indexSize) {
+            case 1: return elements8[i] & 0xff;
+            case 2: return elements16[i] & 0xffff;
+            default: return elements32[i];
+        }
+    }
+
+    private void putElement (int i, int v)
+    {
+        if (direct) {
+            switch (indexSize) {
+                case 1: directElements.put (i, (byte) v); break;
+                case 2: directElements.putShort (i * 2, (short) v); break;
+                default: directElements.putInt (i * 4, v); break;
+            }
+            return;
+        }
+        switch (indexSize) {
+            case 1: elements8[i] = (byte) v; break;
+            case 2: elements16[i] = (short) v; break;
+            default: elements32[i] = v; break;
+        }
+    }
+
+    /**
+     * read back one coordinate of a stored vertex
+     */
+    private float coord (int vert, int axis)
+    {
+        int i = vert * 4 + axis;
+        return direct ? directPoints.get (i) : points[i];
+    }
+
+    private static int hashPosition (int qx, int qy, int qz)
+    {
+        int h = qx * 73856093 ^ qy * 19349663 ^ qz * 83492791;
+        return h ^ (h >>> 16);
+    }
+
+    private void rebuildWeldTable (int size)
+    {
+        int cap = Integer.highestOneBit (Math.max (16, size) - 1) << 1;
+        weldTable = new int[cap];
+        Arrays.fill (weldTable, -1);
+        for (int v = 0; v < nVerts; v++) {
+            int slot = hashPosition (Math.round (coord (v, 0) * WELD_SCALE),
+                                     Math.round (coord (v, 1) * WELD_SCALE),
+                                     Math.round (coord (v, 2) * WELD_SCALE)) & (cap - 1);
+            while (weldTable[slot] != -1)
+                slot = (slot + 1) & (cap - 1);
+            weldTable[slot] = v;
+        }
+    }
+
+    /**
+     * store a new vertex, without any welding
+     *
+     * @return the index of the new vertex
+     */
+    private int appendVertex (float x, float y, float z)
+    {
+        if (nVerts > maxIndex (indexSize)) {
+            reallocElements (indexSize * 2, direct, elementCapacity());
+        }
+
+        growPoints (nPoints + 4);
+        int i = nPoints;
+        if (direct) {
+            FloatBuffer p = directPoints;
+            p.put (i, x); p.put (i + 1, y); p.put (i + 2, z); p.put (i + 3, 1.0f);
+        } else {
+            float p[] = points;
+            p[i] = x; p[i + 1] = y; p[i + 2] = z; p[i + 3] = 1.0f;
+        }
+        nPoints = i + 4;
+        return nVerts++;
+    }
+
+    /**
+     * find the vertex at the given position, adding it if there is none
+     *
+     * @return the index of the vertex
+     */
+    private int weldVertex (float x, float y, float z)
+    {
+        if (nVerts * 2 >= weldTable.length)
+            rebuildWeldTable (weldTable.length * 2);
+
+        int qx = Math.round (x * WELD_SCALE);
+        int qy = Math.round (y * WELD_SCALE);
+        int qz = Math.round (z * WELD_SCALE);
+        int mask = weldTable.length - 1;
+        int slot = hashPosition (qx, qy, qz) & mask;
+
+        int v;
+        while ((v = weldTable[slot]) != -1) {
+            if (Math.round (coord (v, 0) * WELD_SCALE) == qx &&
+                Math.round (coord (v, 1) * WELD_SCALE) == qy &&
+                Math.round (coord (v, 2) * WELD_SCALE) == qz)
+                return v;
+            slot = (slot + 1) & mask;
+        }
+
+        v = appendVertex (x, y, z);
+        weldTable[slot] = v;
+        return v;
+    }
+
+    /**
+     * add a vertex to the shape for use with the indexed addTriangle().
+     * When welding, an existing vertex at the same position is returned
+     * instead of a new one.
+     *
+     * @return the index of the vertex
+     */
+    public int addVertex (float x, float y, float z)
+    {
+        return welding ? weldVertex (x, y, z) : appendVertex (x, y, z);
+    }
+
+    /**
+     * add a triangle made of previously added vertices.  When welding,
+     * triangles whose corners were welded together are dropped.
+     */
+    public void addTriangle (int v0, int v1, int v2)
+    {
+        if (welding && (v0 == v1 || v1 == v2 || v0 == v2))
+            return;
+
+        if (strips) {
+            beginStrip();
+            addStripIndex (v0);
+            addStripIndex (v1);
+            addStripIndex (v2);
+            return;
+        }
+
+        growElements (nElements + 3);
+        putElement (nElements, v0);
+        putElement (nElements + 1, v1);
+        putElement (nElements + 2, v2);
+        nElements += 3;
+        nTriangles++;
+    }
+
+    /**
+     * start a new triangle strip (strip mode only)
+     */
+    protected void beginStrip()
+    {
+        if (nElements > 0) {
+            growElements (nElements + 1);
+            putElement (nElements++, restartIndex (indexSize));
+        }
+        stripLength = 0;
+    }
+
+    /**
+     * add the next vertex of the current triangle strip (strip mode only).
+     * As with GL_TRIANGLE_STRIP, every vertex after the second makes a
+     * triangle with the two before it, with alternate triangles flipped.
+     */
+    protected void addStripIndex (int v)
+    {
+        growElements (nElements + 1);
+        putElement (nElements++, v);
+
+        if (stripLength >= 2 && v != stripA && v != stripB && stripA != stripB)
+            nTriangles++;
+        stripA = stripB;
+        stripB = v;
+        stripLength++;
     }
 
     /**
@@ -50,60 +531,234 @@ public class simpleShape
                                 float x1, float y1, float z1,
                                 float x2, float y2, float z2)
     {
-        points.add (new Float(x0));
-        points.add (new Float(y0));
-        points.add (new Float(z0));
-        points.add (new Float(1.0f));
-        elements.add (new Short(nVerts));
-        nVerts++;
+        if (welding) {
+            int v0 = weldVertex (x0, y0, z0);
+            int v1 = weldVertex (x1, y1, z1);
+            int v2 = weldVertex (x2, y2, z2);
 
-        points.add (new Float(x1));
-        points.add (new Float(y1));
-        points.add (new Float(z1));
-        points.add (new Float(1.0f));
-        elements.add (new Short(nVerts));
-        nVerts++;
+            // triangles that collapse once welded draw nothing
+            addTriangle (v0, v1, v2);
+            return;
+        }
 
-        points.add (new Float(x2));
-        points.add (new Float(y2));
-        points.add (new Float(z2));
-        points.add (new Float(1.0f));
-        elements.add (new Short(nVerts));
-        nVerts++;
+        addTriangle (appendVertex (x0, y0, z0),
+                     appendVertex (x1, y1, z1),
+                     appendVertex (x2, y2, z2));
     }
 
     /**
-     * clear the shape
+     * add all of another shape's triangles to this one.  The other shape's
+     * indices are offset past our vertices, or remapped through welding
+     * when this shape welds.
+     */
+    public void append (simpleShape other)
+    {
+        if (other.strips != strips)
+            throw new IllegalArgumentException ("cannot append shapes of different primitive types");
+
+        growPoints (nPoints + other.nPoints);
+        growElements (nElements + other.nElements);
+
+        int remap[] = new int[other.nVerts];
+        for (int v = 0; v < other.nVerts; v++) {
+            remap[v] = addVertex (other.coord (v, 0), other.coord (v, 1),
+                                  other.coord (v, 2));
+        }
+
+        if (strips) {
+            int restart = restartIndex (other.indexSize);
+            beginStrip();
+            for (int i = 0; i < other.nElements; i++) {
+                int v = other.getElement (i);
+                if (v == restart)
+                    beginStrip();
+                else
+                    addStripIndex (remap[v]);
+            }
+            return;
+        }
+
+        for (int i = 0; i < other.nElements; i += 3) {
+            int v0 = remap[other.getElement (i)];
+            int v1 = remap[other.getElement (i + 1)];
+            int v2 = remap[other.getElement (i + 2)];
+            if (!welding || (v0 != v1 && v1 != v2 && v0 != v2))
+                addTriangle (v0, v1, v2);
+        }
+    }
+
+    /**
+     * reorder the triangles for a post-transform vertex cache of the given
+     * size, then renumber the vertices in the order the triangles now use
+     * them.  The triangles and their winding are unchanged.  See
+     * vertexCache.
+     *
+     * The generators' own order is already good for some shapes (long thin
+     * cylinder sides, say); if the new order would miss the cache more
+     * often the shape is left as it is.
+     *
+     * @return whether the shape was reordered
+     */
+    public boolean optimizeVertexCache (int cacheSize)
+    {
+        if (strips)
+            throw new IllegalStateException ("only triangle lists can be reordered");
+
+        int original[] = new int[nElements];
+        for (int i = 0; i < nElements; i++)
+            original[i] = getElement (i);
+        int indices[] = vertexCache.tipsify (original, nVerts, cacheSize);
+        if (vertexCache.acmr (indices, nVerts, cacheSize) >=
+            vertexCache.acmr (original, nVerts, cacheSize))
+            return false;
+        int remap[] = vertexCache.fetchOrder (indices, nVerts);
+
+        for (int i = 0; i < nElements; i++)
+            putElement (i, remap[indices[i]]);
+
+        float old[] = new float[nPoints];
+        if (direct) {
+            FloatBuffer p = directPoints.duplicate();
+            p.rewind();
+            p.get (old);
+        } else {
+            System.arraycopy (points, 0, old, 0, nPoints);
+        }
+        for (int v = 0; v < nVerts; v++) {
+            int to = remap[v] * 4, from = v * 4;
+            if (direct) {
+                FloatBuffer p = directPoints;
+                p.put (to, old[from]); p.put (to + 1, old[from + 1]);
+                p.put (to + 2, old[from + 2]); p.put (to + 3, old[from + 3]);
+            } else {
+                System.arraycopy (old, from, points, to, 4);
+            }
+        }
+
+        if (weldTable != null)
+            rebuildWeldTable (weldTable.length);
+        return true;
+    }
+
+    /**
+     * clear the shape.  Storage is kept so that rebuilding a shape of
+     * similar size does not need to reallocate.
      */
     public void clear()
     {
-        points= new Vector<Float>(); 
-        elements = new Vector<Short>();
+        nPoints = 0;
+        nElements = 0;
         nVerts = 0;
+        nTriangles = 0;
+        if (indexSize != 1)
+            reallocElements (1, direct, elementCapacity());
+        if (weldTable != null)
+            Arrays.fill (weldTable, -1);
     }
 
+    /**
+     * get the vertices.  The returned buffer is a view onto the shape's
+     * storage and is only valid until the shape is next modified.
+     */
     public Buffer getVertices ()
     {
-        float v[] = new float[points.size()];
-        for (int i=0; i < points.size(); i++) {
-            v[i] = (points.elementAt(i)).floatValue();
+        if (direct) {
+            FloatBuffer v = directPoints.duplicate();
+            v.position (0).limit (nPoints);
+            return v.slice();
         }
-        return FloatBuffer.wrap (v);
+        return FloatBuffer.wrap (points, 0, nPoints).slice();
     }
 
+    /**
+     * get the elements.  The returned buffer is a view onto the shape's
+     * storage and is only valid until the shape is next modified.  Its
+     * type follows getElementType().
+     */
     public Buffer getElements ()
     {
-        short e[] = new short[elements.size()];
-        for (int i=0; i < elements.size(); i++) {
-            e[i] = (elements.elementAt(i)).shortValue();
+        if (direct) {
+            ByteBuffer e = directElements.duplicate();
+            e.order (ByteOrder.nativeOrder());
+            e.position (0).limit (nElements * indexSize);
+            e = e.slice().order (ByteOrder.nativeOrder());
+            switch (indexSize) {
+                case 1: return e;
+                case 2: return e.asShortBuffer();
+                default: return e.asIntBuffer();
+            }
         }
+        switch (indexSize) {
+            case 1: return ByteBuffer.wrap (elements8, 0, nElements).slice();
+            case 2: return ShortBuffer.wrap (elements16, 0, nElements).slice();
+            default: return IntBuffer.wrap (elements32, 0, nElements).slice();
+        }
+    }
 
-        return ShortBuffer.wrap (e);
+    /**
+     * GL type of the indices returned by getElements()
+     */
+    public int getElementType()
+    {
+        return elementType (indexSize);
     }
 
-    public short getNVerts()
+    /**
+     * GL_TRIANGLES, or GL_TRIANGLE_STRIP in strip mode
+     */
+    public int getPrimitiveType()
+    {
+        return strips ? GL.GL_TRIANGLE_STRIP : GL.GL_TRIANGLES;
+    }
+
+    /**
+     * the primitive restart index used between strips
+     */
+    public int getRestartIndex()
+    {
+        return restartIndex (indexSize);
+    }
+
+    /**
+     * number of (non-degenerate) triangles in the shape
+     */
+    public int getNTriangles()
+    {
+        return nTriangles;
+    }
+
+    /**
+     * size in bytes of one index in getElements()
+     */
+    public int getElementSize()
+    {
+        return indexSize;
+    }
+
+    /**
+     * number of bytes of vertex and element storage the shape holds,
+     * including room reserved for growth
+     */
+    public long getByteSize()
+    {
+        long pointBytes = 4l * (direct ? directPoints.capacity() : points.length);
+        return pointBytes + (long) elementCapacity() * indexSize;
+    }
+
+    /**
+     * number of distinct vertices in the vertex buffer
+     */
+    public int getNVerts()
     {
         return nVerts;
     }
 
+    /**
+     * number of indices in the element buffer
+     */
+    public int getNElements()
+    {
+        return nElements;
+    }
+
 }
@@ -0,0 +1,382 @@
+/**
+ * tessBatch.java
+ *
+ * Headless entry point for pre-generating meshes.  Takes a list of jobs of
+ * the form shape:division1[:division2], tessellates them concurrently (one
+ * task per job on a bounded pool), writes each mesh to disk, and reports
+ * triangle counts, wall time and throughput per job.
+ *
+ * usage: java tessBatch [-o dir] [-f mesh|obj] [-j threads] [-c size] [-p | -s] [-v] job...
+ *
+ *   -o dir      directory to write meshes to (default: current directory)
+ *   -f format   mesh for meshFile's mappable binary format (the default,
+ *               and what tessMain -Dtess.meshDir reads) or obj
+ *   -j threads  number of jobs to run at once (default: number of cores)
+ *   -c size     reorder each mesh for a post-transform vertex cache of
+ *               size entries before writing it, and report the average
+ *               cache miss ratio (vertex shader runs per triangle) before
+ *               and after.  Not with -s.
+ *   -p          also split each shape across the fork/join pool
+ *   -s          stream each shape to disk as it is generated, in fixed-size
+ *               chunks, instead of building it in memory first.  Memory
+ *               use stays flat however big the mesh, but vertices are only
+ *               shared within a face, column or sphere patch (no welding),
+ *               and tess_ms includes writing.
+ *   -v          map each mesh file back once written and check its header
+ *               and every index (see meshFile.verify())
+ *
+ * e.g.   java tessBatch -o meshes cube:50 cylinder:256:64 sphere:8
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+public class tessBatch
+{
+    /**
+     * one (shape, division1, division2) job and what came of it
+     */
+    private static class job implements Callable<job>
+    {
+        int shape;
+        int division1;
+        int division2;
+        File out;
+        boolean obj;
+        boolean parallel;
+        boolean stream;
+        boolean verify;
+        int cacheSize;
+
+        int triangles;
+        float acmrBefore;
+        float acmrAfter;
+        int vertices;
+        long bytes;
+        long tessNanos;
+        long totalNanos;
+
+        public job call() throws IOException
+        {
+            job done = make();
+            if (verify && !obj)
+                meshFile.map (out, shape, division1, division2).verify();
+            return done;
+        }
+
+        private job make() throws IOException
+        {
+            long start = System.nanoTime();
+
+            if (stream)
+                return streamTo (out, start);
+
+            cgShape s = new cgShape();
+            s.setWelding (true);
+            s.setParallel (parallel);
+            s.makeShape (shape, division1, division2);
+            if (cacheSize > 0) {
+                acmrBefore = vertexCache.acmr (s, cacheSize);
+                s.optimizeVertexCache (cacheSize);
+                acmrAfter = vertexCache.acmr (s, cacheSize);
+            }
+            tessNanos = System.nanoTime() - start;
+
+            triangles = s.getNTriangles();
+            vertices = s.getNVerts();
+            bytes = obj ? writeObj (s, out)
+                        : meshFile.write (s, shape, division1, division2, out);
+            totalNanos = System.nanoTime() - start;
+            return this;
+        }
+
+        /**
+         * tessellate straight into the output file
+         */
+        private job streamTo (File f, long start) throws IOException
+        {
+            cgShape s = new cgShape();
+            if (obj) {
+                ObjSink sink = new ObjSink (f);
+                try {
+                    s.makeShape (sink, shape, division1, division2);
+                } catch (RuntimeException e) {
+                    sink.close();
+                    f.delete();
+                    throw e;
+                }
+                bytes = sink.close();
+                triangles = sink.triangles;
+                vertices = sink.vertices;
+            } else {
+                meshFile.Writer w = new meshFile.Writer (f, shape, division1, division2);
+                try {
+                    s.makeShape (w, shape, division1, division2);
+                    bytes = w.commit();
+                } finally {
+                    w.close();
+                }
+                triangles = w.getNTriangles();
+                vertices = w.getNVerts();
+            }
+            tessNanos = totalNanos = System.nanoTime() - start;
+            return this;
+        }
+
+        public String toString()
+        {
+            return cgShape.SHAPE_NAMES[shape] + ":" + division1 + ":" + division2;
+        }
+
+        /**
+         * jobs are equal when they make the same mesh, and so the same file
+         */
+        public boolean equals (Object o)
+        {
+            if (!(o instanceof job))
+                return false;
+            job j = (job) o;
+            return shape == j.shape && division1 == j.division1 && division2 == j.division2;
+        }
+
+        public int hashCode()
+        {
+            return (shape * 31 + division1) * 31 + division2;
+        }
+    }
+
+    /**
+     * writes a Wavefront OBJ file as a shape is generated
+     */
+    private static class ObjSink implements triangleSink
+    {
+        private final File file;
+        private final CountingWriter w;
+        int vertices = 0;
+        int triangles = 0;
+
+        ObjSink (File f) throws IOException
+        {
+            file = f;
+            w = new CountingWriter (new BufferedWriter (new FileWriter (f), 1 << 16));
+        }
+
+        public int addVertex (float x, float y, float z)
+        {
+            write ("v " + x + " " + y + " " + z + "\n");
+            return vertices++;
+        }
+
+        public void addTriangle (int v0, int v1, int v2)
+        {
+            write ("f " + (v0 + 1) + " " + (v1 + 1) + " " + (v2 + 1) + "\n");
+            triangles++;
+        }
+
+        private void write (String s)
+        {
+            try {
+                w.write (s);
+            } catch (IOException e) {
+                throw new UncheckedIOException (file.toString(), e);
+            }
+        }
+
+        /**
+         * @return the number of bytes written
+         */
+        long close() throws IOException
+        {
+            w.close();
+            return w.count;
+        }
+    }
+
+    /**
+     * write a shape as a Wavefront OBJ file
+     *
+     * @return the number of bytes written
+     */
+    static long writeObj (simpleShape s, File f) throws IOException
+    {
+        FloatBuffer v = (FloatBuffer) s.getVertices();
+        Buffer e = s.getElements();
+        CountingWriter w = new CountingWriter (
+                new BufferedWriter (new FileWriter (f), 1 << 16));
+
+        try {
+            for (int i = 0; i < v.limit(); i += 4) {
+                w.write ("v " + v.get (i) + " " + v.get (i + 1) + " " + v.get (i + 2) + "\n");
+            }
+            for (int i = 0; i < e.limit(); i += 3) {
+                w.write ("f " + (meshFile.index (e, i) + 1) + " " +
+                         (meshFile.index (e, i + 1) + 1) + " " +
+                         (meshFile.index (e, i + 2) + 1) + "\n");
+            }
+        } finally {
+            w.close();
+        }
+        return w.count;
+    }
+
+    /**
+     * a writer that counts the characters passed through it
+     */
+    private static class CountingWriter extends FilterWriter
+    {
+        long count = 0;
+
+        CountingWriter (Writer out)
+        {
+            super (out);
+        }
+
+        public void write (String str) throws IOException
+        {
+            count += str.length();
+            out.write (str);
+        }
+    }
+
+    /**
+     * parse shape:division1[:division2]
+     */
+    private static job parseJob (String spec)
+    {
+        String parts[] = spec.split (":");
+        if (parts.length < 2 || parts.length > 3)
+            throw new IllegalArgumentException ("bad job " + spec +
+                                                ", expected shape:division1[:division2]");
+
+        job j = new job();
+        j.shape = Arrays.asList (cgShape.SHAPE_NAMES).indexOf (parts[0].toLowerCase());
+        if (j.shape < 0)
+            throw new IllegalArgumentException ("unknown shape " + parts[0]);
+        // divisions are clamped as the generators clamp them and one the
+        // shape ignores is dropped, so jobs for the same mesh are
+        // recognisably the same
+        j.division1 = cgShape.usedDivision1 (j.shape, Integer.parseInt (parts[1]));
+        j.division2 = cgShape.usedDivision2 (j.shape, parts.length > 2 ? Integer.parseInt (parts[2]) : 3);
+        return j;
+    }
+
+    private static void usage()
+    {
+        System.err.println ("usage: java tessBatch [-o dir] [-f mesh|obj] [-j threads] [-c size] [-p | -s] [-v] shape:division1[:division2]...");
+        System.err.println ("       shapes: cube, cylinder, cone, sphere");
+        System.exit (2);
+    }
+
+    /**
+     * main program
+     */
+    public static void main (String args[]) throws Exception
+    {
+        System.setProperty ("java.awt.headless", "true");
+
+        File dir = new File (".");
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean parallel = false;
+        boolean stream = false;
+        boolean obj = false;
+        boolean verify = false;
+        int cacheSize = 0;
+        ArrayList<job> jobs = new ArrayList<job>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals ("-o") && i + 1 < args.length)
+                    dir = new File (args[++i]);
+                else if (args[i].equals ("-f") && i + 1 < args.length) {
+                    String format = args[++i];
+                    if (!format.equals ("obj") && !format.equals ("mesh"))
+                        usage();
+                    obj = format.equals ("obj");
+                }
+                else if (args[i].equals ("-j") && i + 1 < args.length)
+                    threads = Math.max (1, Integer.parseInt (args[++i]));
+                else if (args[i].equals ("-c") && i + 1 < args.length)
+                    cacheSize = Math.max (1, Integer.parseInt (args[++i]));
+                else if (args[i].equals ("-p"))
+                    parallel = true;
+                else if (args[i].equals ("-s"))
+                    stream = true;
+                else if (args[i].equals ("-v"))
+                    verify = true;
+                else if (args[i].startsWith ("-"))
+                    usage();
+                else {
+                    job j = parseJob (args[i]);
+                    if (jobs.contains (j))
+                        System.err.println (args[i] + " makes the same mesh as " + j + "; skipped");
+                    else
+                        jobs.add (j);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println (e.getMessage());
+            usage();
+        }
+
+        if (jobs.isEmpty() || (parallel && stream) || (cacheSize > 0 && stream))
+            usage();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println ("cannot create " + dir);
+            System.exit (1);
+        }
+
+        for (job j : jobs) {
+            j.parallel = parallel;
+            j.stream = stream;
+            j.cacheSize = cacheSize;
+            j.obj = obj;
+            j.verify = verify;
+            String name = meshFile.fileName (j.shape, j.division1, j.division2);
+            if (obj)
+                name = name.substring (0, name.lastIndexOf ('.')) + ".obj";
+            j.out = new File (dir, name);
+        }
+
+        // run every job, one task each, on a bounded pool
+        ExecutorService pool = Executors.newFixedThreadPool (Math.min (threads, jobs.size()));
+        long start = System.nanoTime();
+        List<Future<job>> results = pool.invokeAll (jobs);
+        long wall = System.nanoTime() - start;
+        pool.shutdown();
+
+        long totalTriangles = 0;
+        int failed = 0;
+        System.out.println ("job\ttriangles\tvertices\ttess_ms\ttotal_ms\ttris_per_s\tbytes\t" +
+                            (cacheSize > 0 ? "acmr_before\tacmr_after\t" : "") + "file");
+        for (int i = 0; i < jobs.size(); i++) {
+            job j = jobs.get (i);
+            try {
+                results.get (i).get();
+            } catch (ExecutionException e) {
+                System.err.println (j + ": " + e.getCause());
+                failed++;
+                continue;
+            }
+
+            totalTriangles += j.triangles;
+            System.out.println (j + "\t" + j.triangles + "\t" + j.vertices + "\t" +
+                                j.tessNanos / 1000000 + "\t" + j.totalNanos / 1000000 + "\t" +
+                                (long) (j.triangles / (j.tessNanos / 1e9)) + "\t" +
+                                j.bytes + "\t" +
+                                (cacheSize > 0 ? String.format ("%.3f\t%.3f\t", j.acmrBefore,
+                                                                j.acmrAfter) : "") +
+                                j.out);
+        }
+
+        System.out.println (jobs.size() - failed + " jobs, " + totalTriangles +
+                            " triangles in " + wall / 1000000 + " ms on " +
+                            Math.min (threads, jobs.size()) + " threads, " +
+                            (long) (totalTriangles / (wall / 1e9)) + " triangles/s");
+
+        if (failed > 0)
+            System.exit (1);
+    }
+}
@@ -13,6 +13,11 @@ import java.awt.event.*;
 import javax.media.opengl.*;
 import javax.media.opengl.awt.GLCanvas;
 import javax.media.opengl.fixedfunc.*; 
+import com.jogamp.opengl.util.awt.TextRenderer;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 
 public class tessMain implements GLEventListener, KeyListener
@@ -27,18 +32,17 @@ public class tessMain implements GLEventListener, KeyListener
 
 
     /**
-     * values for levels of subdivisions
+     * the shape the keys (or setShape) last picked, with its levels of
+     * subdivision, as { shape, division1, division2 }.  Replaced whole, so
+     * whichever thread reads it sees one consistent choice.
      */
-    private int division1 = 3;
-    private int division2 = 3;
-    private int currentShape = tessMain.CUBE;
+    private final AtomicReference<int[]> selectedShape =
+        new AtomicReference<int[]> (new int[] { tessMain.CUBE, 3, 3 });
 
     /**
      * buffer info 
      */
-    private boolean bufferInit = false;
-    private int vbuffer;
-    private int ebuffer;
+    private bufferManager myBuffers = new bufferManager();
 
     /**
      * rotation angles
@@ -47,6 +51,97 @@ public class tessMain implements GLEventListener, KeyListener
     public float angles[];
     private float angleInc = 5.0f;
 
+    /**
+     * rotation matrix composed from angles on the CPU, and the angles it
+     * was last composed from.  Used unless -Dtess.gpuRotation=true selects
+     * the shader that rotates by theta per vertex.
+     */
+    private boolean cpuRotation = !Boolean.getBoolean ("tess.gpuRotation");
+    private float rotation[] = new float[16];
+    private float rotationAngles[] = null;
+
+    /**
+     * tessellate to triangle strips joined by primitive restart rather than
+     * separate triangles; set with -Dtess.strips=true (needs GL 3.1)
+     */
+    private boolean useStrips = Boolean.getBoolean ("tess.strips");
+
+    /**
+     * with -Dtess.vcache=N newly tessellated triangle lists are reordered
+     * for a post-transform vertex cache of N entries, and the cache miss
+     * ratio before and after is printed; 0 leaves them in generator order
+     */
+    private int vcacheSize = Integer.getInteger ("tess.vcache", 0);
+
+    /**
+     * scene mode: with -Dtess.instances=N the shape is drawn N times in one
+     * instanced draw call, each copy with its own transform.  null when
+     * drawing a single shape.
+     */
+    instanceSet myInstances;
+    private int instance;
+
+    /**
+     * level of detail: with -Dtess.lod=screen or -Dtess.lod=budget each
+     * shape is built as a chain of up to -Dtess.lodLevels meshes, and
+     * display() picks one every frame from the shape's size on screen or
+     * from a budget of -Dtess.lodBudget triangles for the whole scene.
+     * lodMode is null when not in use.
+     */
+    private String lodMode = System.getProperty ("tess.lod");
+    private int lodLevels = Integer.getInteger ("tess.lodLevels", 5);
+    private long lodBudget = Long.getLong ("tess.lodBudget", 1l << 20);
+    lodChain myChain;
+    private final AtomicReference<lodChain> readyChain = new AtomicReference<lodChain>();
+
+    /**
+     * streaming: with -Dtess.stream=true shapes are tessellated on the GL
+     * thread straight into the mapped vertex and element buffers, a
+     * counting pass followed by a writing pass, so they are never held in
+     * client memory.  streamRequest is the shape still to be streamed and
+     * myStream what is in the buffers.
+     */
+    private boolean streaming = Boolean.getBoolean ("tess.stream");
+    private final AtomicReference<int[]> streamRequest = new AtomicReference<int[]>();
+    glBufferSink myStream;
+
+    /**
+     * meshlet culling: with -Dtess.meshlets=true each shape is split into
+     * meshlets, and every frame only those not facing away or out of
+     * view are drawn.  myMeshlets belongs to the shape last uploaded;
+     * lastCulled is the report last printed, so it is only printed when
+     * it changes.
+     */
+    private boolean useMeshlets = Boolean.getBoolean ("tess.meshlets");
+    meshletSet myMeshlets;
+    private String lastCulled;
+    private final float cullMatrix[] = new float[16];
+
+    /**
+     * instrumentation: timings and counts for tessellation, uploads and
+     * frames, published over JMX and JFR (see frameMetrics).  The draw
+     * calls are timed on the GPU with myTimer.  -Dtess.overlay=true, or
+     * the 'm' key, shows the numbers on screen.
+     */
+    final frameMetrics myMetrics = new frameMetrics();
+    private gpuTimer myTimer;
+    private boolean showOverlay = Boolean.getBoolean ("tess.overlay");
+    private TextRenderer overlayText;
+
+    /**
+     * batch mode: with -Dtess.batch=true all four shapes are built at the
+     * current divisions and packed into one meshBatch, drawn side by side
+     * with a single multi-draw call.  The shape keys then show and hide
+     * shapes instead of switching between them.
+     */
+    private boolean batching = Boolean.getBoolean ("tess.batch");
+
+    /**
+     * size of the drawable in pixels
+     */
+    private int viewWidth = 512;
+    private int viewHeight = 512;
+
     /**
      * shader info
      */
@@ -54,20 +149,72 @@ public class tessMain implements GLEventListener, KeyListener
     private int shaderProgID = 0;
     private boolean updateNeeded = true;
 
+    /**
+     * attribute location, looked up once the program is linked
+     */
+    private int vPosition = -1;
+
+    /**
+     * layout of positions in the vertex buffer, chosen with
+     * -Dtess.vertexFormat=float4|float3|half|snorm16 (float4 by default),
+     * and the shader's decode uniforms
+     */
+    private vertexFormat myFormat;
+    private int posScale = -1;
+    private int posOffset = -1;
+
     /**
      * shape info
      */
-    cgShape myShape;
+    meshData myShape;
+
+    /**
+     * recently built shapes; the budget can be set with -Dtess.cacheBytes
+     */
+    meshCache myCache;
+
+    /**
+     * directory of meshFiles to load shapes from instead of tessellating
+     * them, and to save newly tessellated shapes in; set with
+     * -Dtess.meshDir, null if not in use
+     */
+    File meshDir;
+
+    /**
+     * background tessellation.  wantedShape holds the latest request that
+     * has not been built yet as { shape, division1, division2 }, and
+     * readyShape the latest finished shape not yet picked up by display().
+     */
+    private final ExecutorService builder =
+        Executors.newSingleThreadExecutor (new ThreadFactory() {
+            public Thread newThread (Runnable r)
+            {
+                Thread t = new Thread (r, "tessellator");
+                t.setDaemon (true);
+                return t;
+            }
+        });
+    private final AtomicReference<int[]> wantedShape = new AtomicReference<int[]>();
+    private final AtomicReference<meshData> readyShape = new AtomicReference<meshData>();
+    private final AtomicBoolean building = new AtomicBoolean (false);
+    private final AtomicInteger buildFailures = new AtomicInteger();
 
     /**
-     * my canvas
+     * batch meshes whose visibility the keys have flipped, one bit per
+     * mesh, waiting for display() to apply them on the GL thread
+     */
+    private final AtomicInteger batchToggles = new AtomicInteger();
+
+    /**
+     * my canvas; null when drawing to some other drawable, such as
+     * renderBench's offscreen one
      */
     GLCanvas myCanvas;
 
     /**
      * constructor
      */
-    public tessMain(GLCanvas G)
+    public tessMain(GLAutoDrawable G)
     {
         angles = new float[3];
         angles[0] = 30.0f;
@@ -75,24 +222,144 @@ public class tessMain implements GLEventListener, KeyListener
         angles[2] = 0.0f;
 
         myShaders = new shaderSetup();
-        myShape = new cgShape();
-        myCanvas = G;
+        myShape = null;
+
+        // linked shader programs are saved in -Dtess.shaderCache (none
+        // turns it off), by default in the user's own cache directory,
+        // so later runs skip compiling them
+        String userCache = System.getenv ("XDG_CACHE_HOME");
+        if (userCache == null || userCache.isEmpty())
+            userCache = new File (System.getProperty ("user.home"), ".cache").getPath();
+        String shaderCache = System.getProperty ("tess.shaderCache",
+                new File (userCache, "tess-shaders").getPath());
+        if (!shaderCache.equals ("none"))
+            myShaders.setBinaryCache (new File (shaderCache));
+        myCache = new meshCache (Long.getLong ("tess.cacheBytes", 64l << 20));
+        myCanvas = (G instanceof GLCanvas) ? (GLCanvas) G : null;
+
+        String dir = System.getProperty ("tess.meshDir");
+        meshDir = (dir == null) ? null : new File (dir);
+
+        if (lodMode != null && !lodMode.equals ("screen") && !lodMode.equals ("budget")) {
+            System.err.println ("tess.lod must be screen or budget, not " + lodMode);
+            lodMode = null;
+        }
+
+        if (streaming && lodMode != null) {
+            System.err.println ("tess.stream does not combine with tess.lod; not streaming");
+            streaming = false;
+        }
+
+        String format = System.getProperty ("tess.vertexFormat", "float4");
+        int f = vertexFormat.parse (format);
+        if (f < 0) {
+            System.err.println ("tess.vertexFormat must be float4, float3, half or snorm16, not " + format);
+            f = vertexFormat.FLOAT4;
+        }
+        if (f != vertexFormat.FLOAT4 && streaming) {
+            System.err.println ("tess.stream writes float4 vertices; ignoring tess.vertexFormat");
+            f = vertexFormat.FLOAT4;
+        }
+        myFormat = new vertexFormat (f);
+
+        if (batching && (streaming || lodMode != null)) {
+            System.err.println ("tess.batch does not combine with tess.stream or tess.lod; not batching");
+            batching = false;
+        }
+        if (batching && useMeshlets) {
+            System.err.println ("tess.meshlets does not cull batches; not culling");
+            useMeshlets = false;
+        }
+
+        if (useMeshlets && (useStrips || streaming)) {
+            System.err.println ("tess.meshlets needs separate triangles in client memory; not culling");
+            useMeshlets = false;
+        }
+
+        int nInstances = Integer.getInteger ("tess.instances", 0);
+        if (nInstances > instanceSet.MAX_COUNT) {
+            System.err.println ("tess.instances is at most " + instanceSet.MAX_COUNT + "; drawing that many");
+            nInstances = instanceSet.MAX_COUNT;
+        }
+        if (nInstances > 0) {
+            myInstances = new instanceSet (nInstances, 1l);
+            cpuRotation = true;
+            if (batching) {
+                System.err.println ("tess.batch does not combine with tess.instances; not batching");
+                batching = false;
+            }
+            if (useMeshlets) {
+                System.err.println ("tess.meshlets does not cull instances; not culling");
+                useMeshlets = false;
+            }
+        }
+
+        // meshlets are cut from runs of neighbouring triangles, which the
+        // cache reordering scatters across the shape
+        if (useMeshlets && vcacheSize > 0) {
+            System.err.println ("tess.vcache does not combine with tess.meshlets; not reordering");
+            vcacheSize = 0;
+        }
+
+        myMetrics.register();
 
         G.addGLEventListener (this);
-        G.addKeyListener (this);
+        if (myCanvas != null)
+            myCanvas.addKeyListener (this);
     }
 
+    /**
+     * count and report the GL errors raised since the last check.  A lost
+     * context can keep raising errors, so only a few are read each time.
+     */
     private void errorCheck (GL2 gl2)
     {
-        int code = gl2.glGetError();
-        if (code == GL.GL_NO_ERROR) 
-            System.err.println ("All is well");
-        else
+        int code;
+        for (int i = 0; i < 8 && (code = gl2.glGetError()) != GL.GL_NO_ERROR; i++) {
+            myMetrics.glError (code);
             System.err.println ("Problem - error code : " + code);
-
+        }
     }
 
 
+    /**
+     * compose the rotation rz * ry * rx for the given angles (in degrees)
+     * into a column-major matrix, as the original vertex shader did
+     */
+    public static void rotationMatrix (float angles[], float m[])
+    {
+        double ax = Math.toRadians (angles[0]);
+        double ay = Math.toRadians (angles[1]);
+        double az = Math.toRadians (angles[2]);
+        float cx = (float) Math.cos (ax), sx = (float) Math.sin (ax);
+        float cy = (float) Math.cos (ay), sy = (float) Math.sin (ay);
+        float cz = (float) Math.cos (az), sz = (float) Math.sin (az);
+
+        // column 0
+        m[0] = cz * cy;
+        m[1] = sz * cy;
+        m[2] = -sy;
+        m[3] = 0.0f;
+
+        // column 1
+        m[4] = cz * sy * sx - sz * cx;
+        m[5] = sz * sy * sx + cz * cx;
+        m[6] = cy * sx;
+        m[7] = 0.0f;
+
+        // column 2
+        m[8] = cz * sy * cx + sz * sx;
+        m[9] = sz * sy * cx - cz * sx;
+        m[10] = cy * cx;
+        m[11] = 0.0f;
+
+        // column 3
+        m[12] = 0.0f;
+        m[13] = 0.0f;
+        m[14] = 0.0f;
+        m[15] = 1.0f;
+    }
+
     /**
      * Called by the drawable to initiate OpenGL rendering by the client. 
      */
@@ -100,40 +367,70 @@ public class tessMain implements GLEventListener, KeyListener
     {
         // get GL
         GL2 gl2 = (drawable.getGL()).getGL2();
+        frameMetrics.FrameEvent frame = frameMetrics.startFrame();
+
+        // pick up a newly finished shape
+        meshData ready = readyShape.getAndSet (null);
+        if (ready != null && ready != myShape) {
+            myShape = ready;
+            updateNeeded = true;
+        }
+
+        // or a new level of detail chain, from which a level is picked
+        // every frame
+        lodChain chain = readyChain.getAndSet (null);
+        if (chain != null)
+            myChain = chain;
+        if (myChain != null) {
+            meshData level = myChain.getLevel (selectLevel());
+            if (level != myShape) {
+                myShape = level;
+                updateNeeded = true;
+            }
+        }
+
+        // show and hide batch meshes as the keys asked; flips made before
+        // the batch is built wait for it
+        if (myShape instanceof meshBatch) {
+            meshBatch batch = (meshBatch) myShape;
+            int flips = batchToggles.getAndSet (0);
+            for (int i = 0; flips != 0; i++, flips >>>= 1)
+                if ((flips & 1) != 0 && i < batch.getCount())
+                    batch.setVisible (i, !batch.isVisible (i));
+        }
+
+        // or tessellate one straight into the buffers
+        int req[] = streamRequest.getAndSet (null);
+        if (req != null)
+            myStream = streamShape (gl2, req);
+
+        // nothing to draw until the first shape is built
+        if (myShape == null && myStream == null) {
+            gl2.glClear( GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT );
+            return;
+        }
 
         // This should all probably be in createNewShape...However, 
         // since we can only get access to the GL2 during display, we'll have
         // to include it here.
-        if (updateNeeded) {
+        if (updateNeeded && myShape != null) {
+            frameMetrics.UploadEvent upload = frameMetrics.startUpload();
 
             // get your vertices and elements
-            Buffer points = myShape.getVertices();
+            Buffer points = myFormat.encode (myShape);
             Buffer elements = myShape.getElements();
 
-            // set up the vertex buffer
-            int bf[] = new int[1];
-            if (bufferInit) {
-                bf[0] = vbuffer;
-                gl2.glDeleteBuffers(1, bf, 0);
-            }
-            gl2.glGenBuffers (1, bf, 0);
-            vbuffer = bf[0];
-            long vertBsize = myShape.getNVerts() * 4l * 4l;
-            gl2.glBindBuffer ( GL.GL_ARRAY_BUFFER, vbuffer);
-            gl2.glBufferData ( GL.GL_ARRAY_BUFFER, vertBsize , points, GL.GL_STATIC_DRAW);
-            bufferInit = true;
-
-            // set up element buffer.
-            if (bufferInit) {
-                bf[0] = ebuffer;
-                gl2.glDeleteBuffers(1, bf, 0);
-            }
-            gl2.glGenBuffers (1, bf, 0);
-            ebuffer = bf[0];
-            long eBuffSize = myShape.getNVerts() * 2l;
-            gl2.glBindBuffer ( GL.GL_ELEMENT_ARRAY_BUFFER, ebuffer);
-            gl2.glBufferData ( GL.GL_ELEMENT_ARRAY_BUFFER, eBuffSize,elements, 
-                              GL.GL_STATIC_DRAW);
+            // refill the vertex and element buffers
+            long vertBsize = myFormat.getByteSize (myShape);
+            long eBuffSize = myShape.getNElements() * (long) myShape.getElementSize();
+            myBuffers.upload (gl2, points, vertBsize, elements, eBuffSize);
+
+            // split it into meshlets for culling
+            myMeshlets = null;
+            if (useMeshlets && myShape.getPrimitiveType() == GL.GL_TRIANGLES)
+                myMeshlets = new meshletSet (myShape);
+
+            myMetrics.uploaded (upload, vertBsize + eBuffSize);
 
             // we're all done
             updateNeeded = false;
@@ -143,27 +440,160 @@ public class tessMain implements GLEventListener, KeyListener
         gl2.glClear( GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT );
 
 
-        // bind your vertex buffer
-        gl2.glBindBuffer ( GL.GL_ARRAY_BUFFER, vbuffer);
-
-        // bind your element array buffer
-        gl2.glBindBuffer ( GL.GL_ELEMENT_ARRAY_BUFFER, ebuffer);
+        // bind your vertex and element array buffers
+        myBuffers.bind (gl2);
 
         // set up your attribute variables
         gl2.glUseProgram (shaderProgID);
-        int  vPosition = gl2.glGetAttribLocation (shaderProgID, "vPosition");
         gl2.glEnableVertexAttribArray ( vPosition );
-        gl2.glVertexAttribPointer (vPosition, 4, GL.GL_FLOAT, false,
-                                   0, 0l);
+        myFormat.setAttribute (gl2, vPosition);
+        myFormat.setUniforms (gl2, posScale, posOffset);
 
         // pass in your rotations as a uniform variable
-        theta = gl2.glGetUniformLocation (shaderProgID, "theta");
-        gl2.glUniform3fv (theta, 1, angles, 0);
+        if (cpuRotation) {
+            if (rotationAngles == null || !Arrays.equals (rotationAngles, angles)) {
+                rotationMatrix (angles, rotation);
+                rotationAngles = angles.clone();
+            }
+            gl2.glUniformMatrix4fv (theta, 1, false, rotation, 0);
+        } else {
+            gl2.glUniform3fv (theta, 1, angles, 0);
+        }
 
         // draw your shapes
-        int nElems = myShape.getNVerts();
-        gl2.glDrawElements ( GL.GL_TRIANGLES, nElems,  GL.GL_UNSIGNED_SHORT, 0l);
+        int nElems, type, mode;
+        if (myStream != null) {
+            nElems = myStream.getNElements();
+            type = myStream.getElementType();
+            mode = GL.GL_TRIANGLES;
+        } else {
+            nElems = myShape.getNElements();
+            type = myShape.getElementType();
+            mode = myShape.getPrimitiveType();
+        }
+        // collect GPU times from earlier frames, and time this one's draw
+        for (long ns; (ns = myTimer.poll (gl2)) >= 0; )
+            myMetrics.gpuDraw (ns);
+        myTimer.begin (gl2);
+
+        if (mode == GL.GL_TRIANGLE_STRIP) {
+            gl2.glEnable (GL2GL3.GL_PRIMITIVE_RESTART);
+            gl2.glPrimitiveRestartIndex (myShape.getRestartIndex());
+        }
+        if (myInstances != null) {
+            myInstances.bind (gl2, instance);
+            gl2.glDrawElementsInstanced ( mode, nElems, type, 0l,
+                                          myInstances.getCount());
+            myInstances.unbind (gl2, instance);
+        } else if (myShape instanceof meshBatch && myStream == null) {
+            ((meshBatch) myShape).draw (gl2);
+        } else if (myMeshlets != null && myStream == null) {
+            cullMeshlets();
+            myMeshlets.draw (gl2, type);
+        } else {
+            gl2.glDrawElements ( mode, nElems,  type, 0l);
+        }
+        if (mode == GL.GL_TRIANGLE_STRIP)
+            gl2.glDisable (GL2GL3.GL_PRIMITIVE_RESTART);
+        myTimer.end (gl2);
+
+        int drawn = (myStream != null) ? myStream.getNTriangles() : myShape.getNTriangles();
+        if (myInstances != null)
+            drawn = (int) Math.min (Integer.MAX_VALUE, (long) drawn * myInstances.getCount());
+        else if (myShape instanceof meshBatch && myStream == null)
+            drawn = ((meshBatch) myShape).getVisibleTriangles();
+        else if (myMeshlets != null && myStream == null)
+            drawn -= myMeshlets.getCulledTriangles();
+
+        if (showOverlay)
+            drawOverlay (gl2);
+
+        errorCheck (gl2);
+        myMetrics.frame (frame, drawn);
+    }
 
+    /**
+     * draw myMetrics over the shape, in the top left corner
+     */
+    private void drawOverlay (GL2 gl2)
+    {
+        if (overlayText == null)
+            overlayText = new TextRenderer (new Font ("SansSerif", Font.PLAIN, 12));
+
+        // the text is drawn filled, with the fixed function pipeline
+        gl2.glUseProgram (0);
+        gl2.glDisableVertexAttribArray (vPosition);
+        gl2.glBindBuffer (GL.GL_ARRAY_BUFFER, 0);
+        gl2.glBindBuffer (GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+        gl2.glPolygonMode (GL.GL_FRONT_AND_BACK, GL2GL3.GL_FILL);
+
+        overlayText.beginRendering (viewWidth, viewHeight);
+        overlayText.setColor (0.8f, 0.0f, 0.0f, 1.0f);
+        String lines[] = myMetrics.getOverlay();
+        for (int i = 0; i < lines.length; i++)
+            overlayText.draw (lines[i], 8, viewHeight - 16 * (i + 1));
+        overlayText.endRendering();
+
+        gl2.glPolygonMode (GL.GL_FRONT_AND_BACK, GL2GL3.GL_LINE);
+    }
+
+
+    /**
+     * cull myMeshlets against the current rotation and report the result
+     * when it changes
+     */
+    private void cullMeshlets()
+    {
+        // the GPU rotation path composes the same matrix in the shader
+        rotationMatrix (angles, cullMatrix);
+        int draws = myMeshlets.cull (cullMatrix);
+
+        String report = String.format ("culled %.1f%% of %d triangles (%d of %d meshlets), %d draws",
+                                       myMeshlets.getCulledPercent(), myMeshlets.getNTriangles(),
+                                       myMeshlets.getCulledMeshlets(), myMeshlets.getCount(), draws);
+        if (!report.equals (lastCulled)) {
+            System.out.println (report);
+            lastCulled = report;
+        }
+    }
+
+    /**
+     * tessellate the shape described by a request straight into myBuffers,
+     * sized by a counting pass first
+     */
+    private glBufferSink streamShape (GL2 gl2, int req[])
+    {
+        frameMetrics.TessellationEvent tess = frameMetrics.startTessellation();
+        cgShape shape = new cgShape();
+        countingSink count = new countingSink();
+        shape.makeShape (count, req[0], req[1], req[2]);
+
+        glBufferSink sink;
+        do {
+            sink = new glBufferSink (gl2, myBuffers, count);
+            shape.makeShape (sink, req[0], req[1], req[2]);
+        } while (!sink.finish (gl2));
+
+        myMetrics.tessellated (tess, cgShape.SHAPE_NAMES[req[0]] + ":" + req[1] + ":" + req[2],
+                               sink.getNTriangles(), sink.getNVerts());
+        return sink;
+    }
+
+    /**
+     * pick the level of detail to draw from myChain
+     */
+    private int selectLevel()
+    {
+        int count = (myInstances != null) ? myInstances.getCount() : 1;
+        if (lodMode.equals ("budget"))
+            return myChain.selectByBudget (lodBudget, count);
+
+        // shapes have radius 0.5, so at scale 1 one spans half the
+        // shorter side of the window
+        float size = Math.min (viewWidth, viewHeight) / 2.0f;
+        if (myInstances != null)
+            size *= myInstances.getScale();
+        return myChain.selectByScreenSize (size);
     }
 
 
@@ -174,7 +604,12 @@ public class tessMain implements GLEventListener, KeyListener
      */
     public void dispose(GLAutoDrawable drawable)
     {
-
+        myBuffers.dispose (drawable.getGL().getGL2());
+        myTimer.dispose (drawable.getGL().getGL2());
+        if (overlayText != null)
+            overlayText.dispose();
+        if (myInstances != null)
+            myInstances.dispose (drawable.getGL().getGL2());
     }
 
     /**
@@ -187,12 +622,25 @@ public class tessMain implements GLEventListener, KeyListener
         GL2 gl2 = drawable.getGL().getGL2();
 
         // Load shaders
-        shaderProgID = myShaders.readAndCompile (gl2, "vshader.glsl", "fshader.glsl");
+        String vshader = (myInstances != null) ? "vshader_inst.glsl" :
+                         cpuRotation ? "vshader_mat.glsl" : "vshader.glsl";
+        shaderProgID = myShaders.readAndCompile (gl2, vshader, "fshader.glsl");
         if (shaderProgID == 0) {
             System.err.println ("Error setting up shaders");
             System.exit (1);
         }
 
+        // find our shader variables once
+        vPosition = gl2.glGetAttribLocation (shaderProgID, "vPosition");
+        theta = gl2.glGetUniformLocation (shaderProgID,
+                cpuRotation ? "rotation" : "theta");
+        posScale = gl2.glGetUniformLocation (shaderProgID, "posScale");
+        posOffset = gl2.glGetUniformLocation (shaderProgID, "posOffset");
+        if (myInstances != null)
+            instance = gl2.glGetAttribLocation (shaderProgID, "instance");
+
+        myTimer = new gpuTimer (gl2);
+
         // Other GL initialization
         gl2.glEnable (GL.GL_DEPTH_TEST);
         gl2.glEnable (GL.GL_CULL_FACE);
@@ -215,38 +663,245 @@ public class tessMain implements GLEventListener, KeyListener
     public void reshape(GLAutoDrawable drawable, int x, int y, int width,
                      int height)
     {
-
+        viewWidth = width;
+        viewHeight = height;
     }
 
 
 
     /**
-     * creates a new shape
+     * creates a new shape.  Shapes that are not cached are tessellated on
+     * the builder thread and handed to display() when done; while one is
+     * being built only the most recent request is kept.
      */
     public void createNewShape()
     {
-        // clear the old shape
-        myShape.clear();
+        // snapshot the choice once; the request built from it is all the
+        // builder sees.  The divisions are clamped as the generators clamp
+        // them, so a division that makes the same mesh shares its cache
+        // entry and mesh file.  A batch makes every shape at the divisions
+        // picked, so they are only clamped per shape in buildShape()
+        int sel[] = selectedShape.get();
+        int shapeType = sel[0];
+        int div1 = batching ? sel[1] : cgShape.usedDivision1 (shapeType, sel[1]);
+        int div2 = batching ? sel[2] : cgShape.usedDivision2 (shapeType, sel[2]);
+
+        if (streaming) {
+            streamRequest.set (new int[] { shapeType, div1, div2 });
+            redraw();
+            return;
+        }
 
-        // create the new shape...should be a switch here
-        switch (currentShape)
-        {
-            case CUBE: myShape.makeCube (division1); 
-                break;
+        // reuse the shape if we have built it recently; level of detail
+        // chains are always put together on the builder thread
+        meshData shape = (lodMode != null || batching) ? null :
+                         myCache.get (shapeType, div1, div2);
+        if (shape != null) {
+            wantedShape.set (null);
+            publishShape (shape);
+            return;
+        }
 
-            case CYLINDER: myShape.makeCylinder (0.5f, division1, division2); 
-                break;
+        wantedShape.set (new int[] { shapeType, div1, div2 });
+        if (building.compareAndSet (false, true))
+            builder.execute (buildLoop);
+    }
 
-            case CONE: myShape.makeCone (0.5f, division1, division2); 
-                break;
+    /**
+     * tessellate the shape described by a request, going through the cache
+     * and, if one is set, the mesh directory
+     */
+    private meshData buildShape (int req[])
+    {
+        int shapeType = req[0];
+        int div1 = cgShape.usedDivision1 (shapeType, req[1]);
+        int div2 = cgShape.usedDivision2 (shapeType, req[2]);
+
+        meshData mesh = myCache.peek (shapeType, div1, div2);
+        if (mesh != null)
+            return mesh;
+
+        // a saved mesh only costs a mapping
+        File saved = null;
+        if (meshDir != null) {
+            saved = new File (meshDir, meshFile.fileName (shapeType, div1, div2));
+            if (saved.isFile()) {
+                try {
+                    mesh = meshFile.map (saved, shapeType, div1, div2);
+                    myCache.put (shapeType, div1, div2, mesh);
+                    return mesh;
+                } catch (IOException e) {
+                    System.err.println ("Cannot load " + saved + ": " + e.getMessage());
+                }
+            }
+        }
 
-            case SPHERE: myShape.makeSphere (0.5f, division1, division2); 
-                break;
+        cgShape shape = new cgShape();
+        shape.setDirect (true);
+        shape.setWelding (true);
+        shape.setParallel (true);
+        shape.setStrips (useStrips);
+
+        // create the new shape
+        frameMetrics.TessellationEvent tess = frameMetrics.startTessellation();
+        shape.makeShape (shapeType, div1, div2);
+
+        if (vcacheSize > 0 && !useStrips) {
+            float before = vertexCache.acmr (shape, vcacheSize);
+            boolean reordered = shape.optimizeVertexCache (vcacheSize);
+            System.out.printf ("%s:%d:%d ACMR %.3f -> %.3f (cache of %d%s)%n",
+                               cgShape.SHAPE_NAMES[shapeType], div1, div2, before,
+                               vertexCache.acmr (shape, vcacheSize), vcacheSize,
+                               reordered ? "" : ", original order kept");
+        }
+
+        myMetrics.tessellated (tess, cgShape.SHAPE_NAMES[shapeType] + ":" + div1 + ":" + div2,
+                               shape.getNTriangles(), shape.getNVerts());
+
+        if (saved != null) {
+            try {
+                meshDir.mkdirs();
+                meshFile.write (shape, shapeType, div1, div2, saved);
+            } catch (IOException e) {
+                System.err.println ("Cannot save " + saved + ": " + e.getMessage());
+            }
         }
 
-        updateNeeded = true;
+        myCache.put (shapeType, div1, div2, shape);
+        return shape;
     }
 
+    /**
+     * build the level of detail chain for a request, each level going
+     * through buildShape()
+     */
+    private lodChain buildChain (int req[])
+    {
+        return new lodChain (req[0], req[1], req[2], lodLevels,
+                             new lodChain.LevelBuilder() {
+            public meshData build (int shape, int div1, int div2)
+            {
+                return buildShape (new int[] { shape, div1, div2 });
+            }
+        });
+    }
+
+    /**
+     * switch to another shape, as the keys do
+     */
+    public void setShape (int shape, int div1, int div2)
+    {
+        selectedShape.set (new int[] { shape, div1, div2 });
+        createNewShape();
+    }
+
+    /**
+     * true once the last shape asked for is the one being drawn, i.e. no
+     * request is waiting to be built, picked up or uploaded.  Only
+     * meaningful on the GL thread, after display().
+     */
+    public boolean isSettled()
+    {
+        return wantedShape.get() == null && !building.get() &&
+               readyShape.get() == null && readyChain.get() == null &&
+               streamRequest.get() == null && !updateNeeded;
+    }
+
+    /**
+     * number of requests that could not be built
+     */
+    public int getBuildFailures()
+    {
+        return buildFailures.get();
+    }
+
+    /**
+     * ask for a redraw.  A canvas is repainted; any other drawable is
+     * expected to be driven by an animator.
+     */
+    private void redraw()
+    {
+        if (myCanvas != null)
+            myCanvas.repaint();
+    }
+
+    /**
+     * build every shape at a request's divisions, each through
+     * buildShape(), and pack them into one batch in a two by two grid
+     */
+    private meshBatch buildBatch (int req[])
+    {
+        meshBatch batch = new meshBatch();
+        for (int s = CUBE; s <= SPHERE; s++) {
+            meshData mesh = buildShape (new int[] { s, req[1], req[2] });
+            batch.add (mesh, (s % 2 == 0) ? -0.5f : 0.5f, (s < 2) ? 0.5f : -0.5f, 0.0f, 0.5f);
+        }
+        return batch;
+    }
+
+    /**
+     * hand a finished shape to display() and ask for a redraw
+     */
+    private void publishShape (meshData shape)
+    {
+        readyShape.set (shape);
+        redraw();
+    }
+
+    /**
+     * runs on the builder thread until no requests are left.  A shape
+     * whose request was superseded while it was being built is cached but
+     * not shown.  A request that fails (out of memory, a bad mesh file) is
+     * reported and dropped, leaving the last shape on screen.
+     */
+    private final Runnable buildLoop = new Runnable() {
+        public void run()
+        {
+            boolean owner = true;
+            try {
+                while (true) {
+                    int req[] = wantedShape.get();
+                    if (req != null) {
+                        build (req);
+                        continue;
+                    }
+
+                    // a request may slip in between the check and here
+                    owner = false;
+                    building.set (false);
+                    if (wantedShape.get() == null || !building.compareAndSet (false, true))
+                        return;
+                    owner = true;
+                }
+            } finally {
+                if (owner)
+                    building.set (false);
+            }
+        }
+
+        private void build (int req[])
+        {
+            try {
+                if (lodMode != null) {
+                    lodChain chain = buildChain (req);
+                    if (wantedShape.compareAndSet (req, null)) {
+                        readyChain.set (chain);
+                        redraw();
+                    }
+                } else {
+                    meshData shape = batching ? buildBatch (req) : buildShape (req);
+                    if (wantedShape.compareAndSet (req, null))
+                        publishShape (shape);
+                }
+            } catch (Throwable t) {
+                wantedShape.compareAndSet (req, null);
+                buildFailures.incrementAndGet();
+                System.err.println ("Cannot build " + cgShape.SHAPE_NAMES[req[0]] + ":" +
+                                    req[1] + ":" + req[2] + ": " + t);
+            }
+        }
+    };
+
     /**
      * Because I am a Key Listener...we'll only respond to key presses
      */
@@ -261,6 +916,21 @@ public class tessMain implements GLEventListener, KeyListener
         // Get the key that was pressed
         char key = e.getKeyChar();
 
+        // in batch mode the shape keys show and hide that shape; the
+        // batch belongs to the GL thread, so the flip is queued for it
+        int toggle = "cCns".indexOf (key);
+        if (toggle >= 0 && batching) {
+            int flips;
+            do {
+                flips = batchToggles.get();
+            } while (!batchToggles.compareAndSet (flips, flips ^ (1 << toggle)));
+            myCanvas.display();
+            return;
+        }
+
+        int sel[] = selectedShape.get();
+        int shape = sel[0], div1 = sel[1], div2 = sel[2];
+
         // Respond appropriately
         switch( key ) {
             case 'x': angles[0] -= angleInc; break;
@@ -270,20 +940,34 @@ public class tessMain implements GLEventListener, KeyListener
             case 'Y': angles[1] += angleInc; break;
             case 'Z': angles[2] += angleInc; break; 
 
-            case 'c' : currentShape = CUBE; createNewShape(); break;
-            case 'C' : currentShape = CYLINDER; createNewShape(); break;
-            case 'n' : currentShape = CONE; createNewShape(); break;
-            case 's' : currentShape = SPHERE; createNewShape(); break;
-
-            case '+': division1++; createNewShape(); break;
-            case '=': division2++; createNewShape(); break;
-            case '-': if (division1 > 1 ) {division1--; createNewShape();}break;
-            case '_': if (division2 > 1)  {
-                division2--; 
-                if (currentShape != CUBE) createNewShape();
+            case 'c' : setShape (CUBE, div1, div2); break;
+            case 'C' : setShape (CYLINDER, div1, div2); break;
+            case 'n' : setShape (CONE, div1, div2); break;
+            case 's' : setShape (SPHERE, div1, div2); break;
+
+            case '+': if (shape != SPHERE || div1 <= cgShape.MAX_ICO_LEVEL)
+                          setShape (shape, div1 + 1, div2);
+                      break;
+            case '=': setShape (shape, div1, div2 + 1); break;
+            case '-': if (div1 > 1 ) setShape (shape, div1 - 1, div2); break;
+            case '_': if (div2 > 1)  {
+                if (shape != CUBE)
+                    setShape (shape, div1, div2 - 1);
+                else
+                    selectedShape.set (new int[] { shape, div1, div2 - 1 });
             }
             break;
 
+            case 'i': if (myInstances != null && myInstances.getCount() > 1)
+                          myInstances.setCount (myInstances.getCount() / 2, 1l);
+                      break;
+            case 'I': if (myInstances != null && myInstances.getCount() < instanceSet.MAX_COUNT)
+                          myInstances.setCount (Math.min (myInstances.getCount() * 2,
+                                                          instanceSet.MAX_COUNT), 1l);
+                      break;
+
+            case 'm': showOverlay = !showOverlay; break;
+
             case 'q': case 'Q':
                 System.exit( 0 );
                 break;
@@ -0,0 +1,31 @@
+/**
+ * triangleSink.java
+ *
+ * Where cgShape's generators send their output.  Vertices are added one at
+ * a time and triangles refer to them by the index addVertex() returned, so
+ * a sink can pass geometry straight on as it arrives rather than holding
+ * the whole mesh.
+ *
+ * Implementations:
+ *
+ *   simpleShape        the mesh in memory (what tessMain normally draws)
+ *   countingSink       only counts, for sizing a buffer before a real pass
+ *   glBufferSink       writes into mapped GL vertex and element buffers
+ *   meshFile.Writer    writes a mesh file in fixed-size chunks
+ */
+
+public interface triangleSink
+{
+    /**
+     * add a vertex
+     *
+     * @return the index to pass to addTriangle() for this vertex
+     */
+    int addVertex (float x, float y, float z);
+
+    /**
+     * add a triangle made of previously added vertices, counter-clockwise
+     * when seen from outside the shape
+     */
+    void addTriangle (int v0, int v1, int v2);
+}
@@ -0,0 +1,176 @@
+/**
+ * vertexCache.java
+ *
+ * Post-transform vertex cache tools for indexed triangle lists.  The GPU
+ * keeps the last few transformed vertices, so a triangle whose corners
+ * were used recently costs no vertex shader runs; the generators emit
+ * triangles in whatever order their loops visit them, which reuses
+ * vertices well along a row but poorly across rows.
+ *
+ *   acmr()        average cache miss ratio (vertex shader runs per
+ *                 triangle) of an index order under a FIFO cache.  0.5 is
+ *                 the best a large regular mesh can do and 3 the worst.
+ *   tipsify()     reorder triangles for a cache of a given size, after
+ *                 Sander, Nehab and Barczak, "Fast Triangle Reordering for
+ *                 Vertex Locality and Reduced Overdraw" (2007).  Runs in
+ *                 time linear in the size of the mesh.
+ *   fetchOrder()  renumber vertices in the order the triangles first use
+ *                 them, so vertex fetches walk memory forwards.
+ *
+ * simpleShape.optimizeVertexCache() applies the last two to a shape.
+ */
+
+import java.nio.*;
+import java.util.*;
+
+
+public class vertexCache
+{
+    /**
+     * cache size to optimize for when none is given; smaller than most
+     * current hardware, which costs little on bigger caches
+     */
+    public static final int DEFAULT_SIZE = 16;
+
+    /**
+     * average cache miss ratio of a mesh's triangle list under a FIFO
+     * cache of the given size
+     */
+    public static float acmr (meshData mesh, int cacheSize)
+    {
+        Buffer e = mesh.getElements();
+        int n = mesh.getNElements();
+        int indices[] = new int[n];
+        for (int i = 0; i < n; i++)
+            indices[i] = meshFile.index (e, i);
+        return acmr (indices, mesh.getNVerts(), cacheSize);
+    }
+
+    public static float acmr (int indices[], int nVerts, int cacheSize)
+    {
+        if (indices.length < 3)
+            return 0;
+
+        // a vertex is cached if fewer than cacheSize misses have happened
+        // since it was loaded
+        int loaded[] = new int[nVerts];
+        Arrays.fill (loaded, Integer.MIN_VALUE / 2);
+        int misses = 0;
+        for (int v : indices) {
+            if (misses - loaded[v] >= cacheSize) {
+                loaded[v] = misses;
+                misses++;
+            }
+        }
+        return (float) misses / (indices.length / 3);
+    }
+
+    /**
+     * reorder the triangles of a triangle list for a FIFO cache of the
+     * given size
+     *
+     * @return a new index array with the same triangles, each keeping its
+     *         winding
+     */
+    public static int[] tipsify (int indices[], int nVerts, int cacheSize)
+    {
+        int nTriangles = indices.length / 3;
+
+        // triangles around each vertex, as offsets into one array
+        int live[] = new int[nVerts];
+        for (int v : indices)
+            live[v]++;
+        int start[] = new int[nVerts + 1];
+        for (int v = 0; v < nVerts; v++)
+            start[v + 1] = start[v] + live[v];
+        int adjacent[] = new int[indices.length];
+        int fill[] = Arrays.copyOf (start, nVerts);
+        for (int i = 0; i < indices.length; i++)
+            adjacent[fill[indices[i]]++] = i / 3;
+
+        int stamp[] = new int[nVerts];
+        boolean emitted[] = new boolean[nTriangles];
+        int deadEnd[] = new int[indices.length];
+        int deadEnds = 0;
+        int candidates[] = new int[indices.length];
+        int out[] = new int[indices.length];
+        int nOut = 0;
+
+        int time = cacheSize + 1;
+        int cursor = 0;
+        int fan = nVerts > 0 ? 0 : -1;
+        while (fan >= 0) {
+            // emit every remaining triangle around the fanning vertex
+            int nCandidates = 0;
+            for (int a = start[fan]; a < start[fan + 1]; a++) {
+                int t = adjacent[a];
+                if (emitted[t])
+                    continue;
+                for (int k = 0; k < 3; k++) {
+                    int v = indices[t * 3 + k];
+                    out[nOut++] = v;
+                    deadEnd[deadEnds++] = v;
+                    candidates[nCandidates++] = v;
+                    live[v]--;
+                    if (time - stamp[v] > cacheSize)
+                        stamp[v] = time++;
+                }
+                emitted[t] = true;
+            }
+
+            // fan next around the candidate that will still be in the
+            // cache when its remaining triangles are emitted, and is
+            // oldest among those
+            fan = -1;
+            int best = -1;
+            for (int c = 0; c < nCandidates; c++) {
+                int v = candidates[c];
+                if (live[v] <= 0)
+                    continue;
+                int priority = 0;
+                if (time - stamp[v] + 2 * live[v] <= cacheSize)
+                    priority = time - stamp[v];
+                if (priority > best) {
+                    best = priority;
+                    fan = v;
+                }
+            }
+
+            // otherwise back up to a recently used vertex with triangles
+            // left, or failing that the next such vertex in index order
+            while (fan < 0 && deadEnds > 0) {
+                int v = deadEnd[--deadEnds];
+                if (live[v] > 0)
+                    fan = v;
+            }
+            while (fan < 0 && cursor < nVerts) {
+                if (live[cursor] > 0)
+                    fan = cursor;
+                cursor++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * number vertices in the order a triangle list first uses them;
+     * vertices it never uses go last, in their old order
+     *
+     * @return the new index of each old vertex
+     */
+    public static int[] fetchOrder (int indices[], int nVerts)
+    {
+        int remap[] = new int[nVerts];
+        Arrays.fill (remap, -1);
+        int next = 0;
+        for (int v : indices) {
+            if (remap[v] < 0)
+                remap[v] = next++;
+        }
+        for (int v = 0; v < nVerts; v++) {
+            if (remap[v] < 0)
+                remap[v] = next++;
+        }
+        return remap;
+    }
+}
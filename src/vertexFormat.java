@@ -0,0 +1,246 @@
+/**
+ * vertexFormat.java
+ *
+ * How vertex positions are laid out in the vertex buffer.  Shapes keep
+ * four floats per vertex in client memory (x, y, z and a constant w of
+ * 1); encode() packs them into the chosen format on the way to the GPU:
+ *
+ *   float4    16 bytes, as stored (no copy is made)
+ *   float3    12 bytes, w dropped
+ *   half       8 bytes, x, y, z as half floats plus 2 bytes of padding
+ *   snorm16    8 bytes, x, y, z as normalized signed shorts spanning the
+ *              shape's bounds, plus 2 bytes of padding
+ *
+ * The packed formats keep an 8 byte stride, as fetches that straddle a
+ * 4 byte boundary are slow on much hardware.  The attribute is read as
+ * three components and the shader supplies w.
+ *
+ * The vertex shaders decode every format the same way:
+ *
+ *     position = vPosition.xyz * posScale + posOffset
+ *
+ * setUniforms() passes the scale and offset; both are the identity for
+ * every format except snorm16, where they map [-1, 1] back onto the
+ * shape's bounds.
+ */
+
+import java.nio.*;
+import javax.media.opengl.*;
+
+
+public class vertexFormat
+{
+    public static final int FLOAT4 = 0;
+    public static final int FLOAT3 = 1;
+    public static final int HALF = 2;
+    public static final int SNORM16 = 3;
+
+    public static final String NAMES[] = { "float4", "float3", "half", "snorm16" };
+
+    private static final int STRIDES[] = { 16, 12, 8, 8 };
+
+    private final int format;
+
+    /**
+     * decode transform for the last shape encoded
+     */
+    private final float scale[] = { 1.0f, 1.0f, 1.0f };
+    private final float offset[] = { 0.0f, 0.0f, 0.0f };
+
+    /**
+     * storage for packed vertices, reused between shapes
+     */
+    private ByteBuffer packed;
+
+    public vertexFormat (int format)
+    {
+        if (format < 0 || format >= NAMES.length)
+            throw new IllegalArgumentException ("unknown vertex format " + format);
+        this.format = format;
+    }
+
+    /**
+     * the format with the given name, as in NAMES, or -1
+     */
+    public static int parse (String name)
+    {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase (name))
+                return i;
+        }
+        return -1;
+    }
+
+    public int getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * bytes per vertex in the vertex buffer
+     */
+    public int getStride()
+    {
+        return STRIDES[format];
+    }
+
+    /**
+     * bytes of vertex buffer a mesh takes in this format
+     */
+    public long getByteSize (meshData mesh)
+    {
+        return mesh.getNVerts() * (long) getStride();
+    }
+
+    /**
+     * pack a mesh's vertices, recording the transform the shader needs
+     * to decode them
+     *
+     * @return the packed vertices, getByteSize (mesh) bytes of them
+     */
+    public Buffer encode (meshData mesh)
+    {
+        FloatBuffer v = (FloatBuffer) mesh.getVertices();
+        int nVerts = mesh.getNVerts();
+
+        for (int a = 0; a < 3; a++) {
+            scale[a] = 1.0f;
+            offset[a] = 0.0f;
+        }
+        if (format == FLOAT4)
+            return v;
+
+        int bytes = nVerts * getStride();
+        if (packed == null || packed.capacity() < bytes)
+            packed = ByteBuffer.allocateDirect (bytes).order (ByteOrder.nativeOrder());
+        packed.clear();
+
+        if (format == SNORM16)
+            fitBounds (v, nVerts);
+
+        for (int i = 0; i < nVerts; i++) {
+            int p = i * 4;
+            switch (format) {
+                case FLOAT3:
+                    packed.putFloat (v.get (p)).putFloat (v.get (p + 1)).putFloat (v.get (p + 2));
+                    break;
+                case HALF:
+                    packed.putShort (toHalf (v.get (p))).putShort (toHalf (v.get (p + 1)))
+                          .putShort (toHalf (v.get (p + 2))).putShort ((short) 0);
+                    break;
+                default:
+                    for (int a = 0; a < 3; a++)
+                        packed.putShort (toSnorm ((v.get (p + a) - offset[a]) / scale[a]));
+                    packed.putShort ((short) 0);
+                    break;
+            }
+        }
+        packed.flip();
+        return packed;
+    }
+
+    /**
+     * set scale and offset so [-1, 1] covers the vertices on each axis
+     */
+    private void fitBounds (FloatBuffer v, int nVerts)
+    {
+        if (nVerts == 0)
+            return;
+        for (int a = 0; a < 3; a++) {
+            float lo = v.get (a), hi = lo;
+            for (int i = 1; i < nVerts; i++) {
+                float c = v.get (i * 4 + a);
+                lo = Math.min (lo, c);
+                hi = Math.max (hi, c);
+            }
+            offset[a] = (lo + hi) * 0.5f;
+            scale[a] = (hi > lo) ? (hi - lo) * 0.5f : 1.0f;
+        }
+    }
+
+    private static short toSnorm (float f)
+    {
+        return (short) Math.round (Math.max (-1.0f, Math.min (1.0f, f)) * 32767.0f);
+    }
+
+    /**
+     * convert to IEEE half precision, rounding to nearest even
+     */
+    static short toHalf (float f)
+    {
+        int bits = Float.floatToIntBits (f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = (bits >>> 23) & 0xff;
+        int mant = bits & 0x7fffff;
+
+        if (exp == 0xff)                    // infinity or NaN
+            return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 : 0));
+
+        int e = exp - 127 + 15;
+        if (e >= 0x1f)                      // too big: infinity
+            return (short) (sign | 0x7c00);
+
+        int h, shift;
+        if (e <= 0) {                       // a half subnormal, or zero
+            if (e < -10)
+                return (short) sign;
+            mant |= 0x800000;
+            shift = 14 - e;
+            h = mant >> shift;
+        } else {
+            shift = 13;
+            h = (e << 10) | (mant >> shift);
+        }
+
+        // a carry out of the mantissa correctly bumps the exponent
+        int rest = mant & ((1 << shift) - 1), halfway = 1 << (shift - 1);
+        if (rest > halfway || (rest == halfway && (h & 1) != 0))
+            h++;
+        return (short) (sign | h);
+    }
+
+    /**
+     * point a vertex attribute at the bound vertex buffer in this format
+     */
+    public void setAttribute (GL2 gl2, int location)
+    {
+        switch (format) {
+            case FLOAT4:
+                gl2.glVertexAttribPointer (location, 4, GL.GL_FLOAT, false, 16, 0l);
+                break;
+            case FLOAT3:
+                gl2.glVertexAttribPointer (location, 3, GL.GL_FLOAT, false, 12, 0l);
+                break;
+            case HALF:
+                gl2.glVertexAttribPointer (location, 3, GL.GL_HALF_FLOAT, false, 8, 0l);
+                break;
+            default:
+                gl2.glVertexAttribPointer (location, 3, GL.GL_SHORT, true, 8, 0l);
+                break;
+        }
+    }
+
+    /**
+     * pass the decode transform for the last shape encoded
+     */
+    public void setUniforms (GL2 gl2, int scaleLocation, int offsetLocation)
+    {
+        gl2.glUniform3fv (scaleLocation, 1, scale, 0);
+        gl2.glUniform3fv (offsetLocation, 1, offset, 0);
+    }
+
+    public float[] getScale()
+    {
+        return scale.clone();
+    }
+
+    public float[] getOffset()
+    {
+        return offset.clone();
+    }
+
+    public String toString()
+    {
+        return NAMES[format];
+    }
+}
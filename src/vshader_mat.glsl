@@ -0,0 +1,14 @@
+#version 120
+
+attribute vec4 vPosition;
+uniform mat4 rotation;
+uniform vec3 posScale;
+uniform vec3 posOffset;
+
+void main()
+{
+    // rotation is composed on the CPU as rz * ry * rx whenever the
+    // angles change, so each vertex needs just the one product
+    // vertexFormat.java describes the packed position
+    gl_Position = rotation * vec4 (vPosition.xyz * posScale + posOffset, 1.0);
+}
@@ -0,0 +1,295 @@
+/**
+ * glRecorder.java
+ *
+ * A stand-in for the GL buffer calls (bufferCalls) that records them
+ * instead of talking to a GPU, so bufferManager and glBufferSink can be
+ * checked on machines with no display.  glGenBuffers hands out
+ * increasing names, glMapBufferRange hands out fresh memory of the size
+ * asked for (kept for getMapping()), and glUnmapBuffer succeeds.
+ *
+ * Running this class uploads shapes of growing and shrinking sizes
+ * through a bufferManager, streams one through a glBufferSink, and checks
+ * what reached GL: storage is reallocated only when data outgrows it,
+ * otherwise orphaned and refilled with glBufferSubData, and buffer names
+ * are generated once.  It exits with status 1 if any check fails.
+ *
+ * It is a test harness, kept out of the application sources; build and
+ * run it against them with:
+ *
+ *     javac -cp jogl-all.jar:gluegen-rt.jar -d out src/*.java test/*.java
+ *     java -cp out:jogl-all.jar:gluegen-rt.jar glRecorder
+ */
+
+import java.nio.*;
+import java.util.*;
+import javax.media.opengl.*;
+
+
+public class glRecorder implements bufferCalls
+{
+    /**
+     * one recorded call: its name and arguments
+     */
+    static class Call
+    {
+        final String name;
+        final Object args[];
+
+        Call (String name, Object... args)
+        {
+            this.name = name;
+            this.args = args;
+        }
+
+        long arg (int i)
+        {
+            return ((Number) args[i]).longValue();
+        }
+
+        public String toString()
+        {
+            StringBuilder b = new StringBuilder (name).append ('(');
+            for (int i = 0; i < args.length; i++) {
+                if (i > 0)
+                    b.append (", ");
+                b.append (describe (args[i]));
+            }
+            return b.append (')').toString();
+        }
+    }
+
+    private ArrayList<Call> calls;
+    private int nextName;
+
+    /**
+     * the memory most recently handed out by glMapBufferRange, by target
+     */
+    private HashMap<Integer, ByteBuffer> mappings;
+
+    /**
+     * constructor
+     */
+    public glRecorder()
+    {
+        calls = new ArrayList<Call>();
+        nextName = 1;
+        mappings = new HashMap<Integer, ByteBuffer>();
+    }
+
+    public void glGenBuffers (int n, int buffers[], int offset)
+    {
+        for (int i = 0; i < n; i++)
+            buffers[offset + i] = nextName++;
+        calls.add (new Call ("glGenBuffers", n, Arrays.copyOfRange (buffers, offset, offset + n)));
+    }
+
+    public void glDeleteBuffers (int n, int buffers[], int offset)
+    {
+        calls.add (new Call ("glDeleteBuffers", n, Arrays.copyOfRange (buffers, offset, offset + n)));
+    }
+
+    public void glBindBuffer (int target, int buffer)
+    {
+        calls.add (new Call ("glBindBuffer", target, buffer));
+    }
+
+    public void glBufferData (int target, long size, Buffer data, int usage)
+    {
+        calls.add (new Call ("glBufferData", target, size, data, usage));
+    }
+
+    public void glBufferSubData (int target, long offset, long size, Buffer data)
+    {
+        calls.add (new Call ("glBufferSubData", target, offset, size, data));
+    }
+
+    public ByteBuffer glMapBufferRange (int target, long offset, long length, int access)
+    {
+        calls.add (new Call ("glMapBufferRange", target, offset, length, access));
+        ByteBuffer b = ByteBuffer.allocateDirect ((int) length);
+        mappings.put (target, b);
+        return b;
+    }
+
+    public boolean glUnmapBuffer (int target)
+    {
+        calls.add (new Call ("glUnmapBuffer", target));
+        return true;
+    }
+
+    private static String describe (Object a)
+    {
+        if (a instanceof Buffer)
+            return a.getClass().getSimpleName() + "[" + ((Buffer) a).remaining() + "]";
+        if (a instanceof int[])
+            return Arrays.toString ((int[]) a);
+        return String.valueOf (a);
+    }
+
+    public List<Call> getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * the recorded calls to the named method, on the given target (or on
+     * any target if target is -1)
+     */
+    public List<Call> find (String name, int target)
+    {
+        ArrayList<Call> found = new ArrayList<Call>();
+        for (Call c : calls) {
+            if (c.name.equals (name) && (target == -1 || c.arg (0) == target))
+                found.add (c);
+        }
+        return found;
+    }
+
+    /**
+     * how many recorded calls were to the named method
+     */
+    public int count (String name)
+    {
+        return find (name, -1).size();
+    }
+
+    public void clear()
+    {
+        calls.clear();
+    }
+
+    /**
+     * the memory last mapped for a target such as GL_ARRAY_BUFFER, or null
+     */
+    public ByteBuffer getMapping (int target)
+    {
+        return mappings.get (target);
+    }
+
+    private static int failures;
+
+    private static void check (boolean ok, String what)
+    {
+        if (!ok) {
+            System.out.println ("FAIL: " + what);
+            failures++;
+        }
+    }
+
+    /**
+     * check one buffer's calls from an upload of bytes into storage of
+     * capacity before; returns the capacity afterwards
+     */
+    private static long checkFill (glRecorder rec, String label, int target,
+                                   long before, long after, long bytes, boolean orphan)
+    {
+        List<Call> data = rec.find ("glBufferData", target);
+        List<Call> sub = rec.find ("glBufferSubData", target);
+
+        if (bytes > before) {
+            // outgrown: new storage, at least doubling
+            check (data.size() == 1, label + ": one glBufferData on growth");
+            check (after >= bytes && after >= 2 * before,
+                   label + ": capacity " + after + " holds " + bytes + " and at least doubles " + before);
+            if (data.size() == 1)
+                check (data.get (0).arg (1) == after && data.get (0).args[2] == null,
+                       label + ": storage respecified at the new capacity with no data");
+        } else if (orphan) {
+            // fits: orphaned at the same size
+            check (after == before, label + ": capacity kept when the data fits");
+            check (data.size() == 1 && data.get (0).arg (1) == before && data.get (0).args[2] == null,
+                   label + ": storage orphaned at its current size");
+        } else {
+            check (after == before, label + ": capacity kept when the data fits");
+            check (data.isEmpty(), label + ": no glBufferData without orphaning");
+        }
+
+        check (sub.size() == 1 && sub.get (0).arg (1) == 0 && sub.get (0).arg (2) == bytes,
+               label + ": data sent with one glBufferSubData of " + bytes + " bytes");
+        if (!data.isEmpty() && !sub.isEmpty())
+            check (rec.calls.indexOf (data.get (0)) < rec.calls.indexOf (sub.get (0)),
+                   label + ": glBufferData before glBufferSubData");
+        return after;
+    }
+
+    /**
+     * upload shapes of different sizes through a bufferManager and check
+     * what reached GL
+     */
+    public static void main (String args[])
+    {
+        glRecorder rec = new glRecorder();
+        bufferManager buffers = new bufferManager();
+        int sizes[] = { 3, 2, 10, 10, 4, 12 };
+        int generated = 0;
+
+        for (int i = 0; i < sizes.length; i++) {
+            cgShape shape = new cgShape();
+            shape.setWelding (true);
+            shape.makeCube (sizes[i]);
+
+            // the last upload is made without orphaning
+            boolean orphan = (i < sizes.length - 2);
+            buffers.setOrphaning (orphan);
+
+            long vertBefore = buffers.getVertexCapacity();
+            long elemBefore = buffers.getElementCapacity();
+            long vertBytes = shape.getNVerts() * 16l;
+            long elemBytes = shape.getNElements() * (long) shape.getElementSize();
+
+            rec.clear();
+            buffers.upload (rec, shape.getVertices(), vertBytes, shape.getElements(), elemBytes);
+            generated += rec.count ("glGenBuffers");
+
+            String label = "cube " + sizes[i];
+            checkFill (rec, label + " vertices", GL.GL_ARRAY_BUFFER,
+                       vertBefore, buffers.getVertexCapacity(), vertBytes, orphan);
+            checkFill (rec, label + " elements", GL.GL_ELEMENT_ARRAY_BUFFER,
+                       elemBefore, buffers.getElementCapacity(), elemBytes, orphan);
+            check (buffers.getLastUploadBytes() == vertBytes + elemBytes,
+                   label + ": upload size recorded");
+
+            System.out.println (label + ": " + (vertBytes + elemBytes) + " bytes, capacity " +
+                                buffers.getVertexCapacity() + "/" + buffers.getElementCapacity());
+            for (Call c : rec.getCalls())
+                System.out.println ("    " + c);
+        }
+
+        // and a shape tessellated straight into the mapped buffers
+        cgShape shape = new cgShape();
+        countingSink count = new countingSink();
+        shape.makeShape (count, tessMain.CYLINDER, 12, 4);
+
+        rec.clear();
+        glBufferSink sink = new glBufferSink (rec, buffers, count);
+        shape.makeShape (sink, tessMain.CYLINDER, 12, 4);
+        check (sink.finish (rec), "streamed buffers unmapped");
+        generated += rec.count ("glGenBuffers");
+
+        long vertBytes = count.getNVerts() * 16l;
+        long elemBytes = count.getNTriangles() * 3l * sink.getElementSize();
+        check (rec.count ("glMapBufferRange") == 2 && rec.count ("glUnmapBuffer") == 2,
+               "streaming maps and unmaps both buffers once");
+        check (rec.getMapping (GL.GL_ARRAY_BUFFER).capacity() == vertBytes &&
+               rec.getMapping (GL.GL_ELEMENT_ARRAY_BUFFER).capacity() == elemBytes,
+               "streaming maps exactly the counted sizes");
+        check (sink.getNVerts() == count.getNVerts() && sink.getNTriangles() == count.getNTriangles(),
+               "streamed the counted vertices and triangles");
+        System.out.println ("streamed cylinder 12:4: " + count);
+        for (Call c : rec.getCalls())
+            System.out.println ("    " + c);
+
+        check (generated == 1, "buffer names generated once, not " + generated + " times");
+
+        rec.clear();
+        buffers.dispose (rec);
+        check (rec.count ("glDeleteBuffers") == 1 && !buffers.isInitialized(),
+               "dispose deletes both buffers");
+
+        if (failures > 0) {
+            System.out.println (failures + " checks failed");
+            System.exit (1);
+        }
+        System.out.println ("all checks passed");
+    }
+}
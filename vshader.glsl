@@ -2,6 +2,8 @@
 
 attribute vec4 vPosition;
 uniform vec3 theta;
+uniform vec3 posScale;
+uniform vec3 posOffset;
 
 void main()
 {
@@ -28,5 +30,8 @@ void main()
                     0.0,  0.0,  0.0,  1.0);
           
     
-    gl_Position = rz * ry * rx * vPosition;
+    // decode the packed position (see vertexFormat.java)
+    vec4 p = vec4 (vPosition.xyz * posScale + posOffset, 1.0);
+
+    gl_Position = rz * ry * rx * p;
 }
@@ -0,0 +1,15 @@
+#version 120
+
+attribute vec4 vPosition;
+attribute mat4 instance;
+uniform mat4 rotation;
+uniform vec3 posScale;
+uniform vec3 posOffset;
+
+void main()
+{
+    // instance places, orients and scales this copy of the shape, and
+    // rotation turns the whole scene, as in vshader_mat.glsl
+    vec4 p = vec4 (vPosition.xyz * posScale + posOffset, 1.0);
+    gl_Position = rotation * (instance * p);
+}